@@ -0,0 +1,78 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+import org.apache.commons.math3.complex.Quaternion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preprocessing and export costs for a single recording.
+ * <p>
+ * Throughput and sampled latency (with percentiles) are reported for each benchmark; run with {@code -prof gc} to get
+ * the allocation rate as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CurveBenchmark {
+    @Param({"100", "500", "1000"})
+    int rate;
+
+    @Param({"1", "5", "20"})
+    double seconds;
+
+    List<Sample> samples;
+    TimeSeries trimmed;
+    Curve curve = new Curve();
+
+    @Setup
+    public void setup() {
+        samples = SyntheticSamples.gesture(rate, seconds, 1);
+        trimmed = Curves.processCurve(samples);
+    }
+
+    @Benchmark
+    public TimeSeries processCurve() {
+        return Curves.processCurve(samples);
+    }
+
+    @Benchmark
+    public Curve processCurveReusingCurve() {
+        return Curves.processCurve(samples, curve);
+    }
+
+    @Benchmark
+    public void relativeTo(Blackhole bh) {
+        Quaternion base = samples.get(0).getQuaternion();
+        for (Sample s : samples)
+            bh.consume(Curves.relativeTo(s.getQuaternion(), base));
+    }
+
+    @Benchmark
+    public void exportRawCSV() throws IOException {
+        Curves.writeCSV(SyntheticSamples.NULL_WRITER, samples);
+    }
+
+    @Benchmark
+    public void exportTrimmedCSV() throws IOException {
+        Curves.writeCSV(SyntheticSamples.NULL_WRITER, trimmed);
+    }
+}
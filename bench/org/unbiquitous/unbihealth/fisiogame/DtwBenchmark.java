@@ -0,0 +1,79 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.dtw.FastDTW;
+import com.fastdtw.dtw.TimeWarpInfo;
+import com.fastdtw.timeseries.TimeSeries;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of comparing a recording against one reference curve of similar length, with each DTW implementation.
+ * <p>
+ * Throughput and sampled latency (with percentiles) are reported for each benchmark; run with {@code -prof gc} to get
+ * the allocation rate as well. Exact DTW is quadratic, so the longest settings take around a second per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DtwBenchmark {
+    @Param({"100", "500", "1000"})
+    int rate;
+
+    @Param({"1", "5", "20"})
+    double seconds;
+
+    TimeSeries ref, curve;
+    Curve refCurve, curveCurve;
+    DtwCascade.Bounds bounds;
+    PrimitiveDtw dtw = new PrimitiveDtw();
+    DtwCascade fastCascade = new DtwCascade(Curves.MATCH_THRESHOLD, DtwCascade.Engine.FASTDTW);
+    DtwCascade primitiveCascade = new DtwCascade(Curves.MATCH_THRESHOLD, DtwCascade.Engine.PRIMITIVE);
+
+    @Setup
+    public void setup() {
+        ref = Curves.processCurve(SyntheticSamples.gesture(rate, seconds, 1));
+        curve = Curves.processCurve(SyntheticSamples.gesture(rate, seconds, 2));
+        refCurve = Curve.of(ref);
+        curveCurve = Curve.of(curve);
+        bounds = DtwCascade.bounds(curve);
+    }
+
+    @Benchmark
+    public TimeWarpInfo fastDtw() {
+        return FastDTW.compare(ref, curve, Curves.WORST_DIST);
+    }
+
+    @Benchmark
+    public double primitiveDtw() {
+        return dtw.distance(refCurve, curveCurve);
+    }
+
+    @Benchmark
+    public double primitiveDtwBanded() {
+        return dtw.distance(refCurve, curveCurve, Math.max(1, curveCurve.size() / 10));
+    }
+
+    @Benchmark
+    public double fastDtwCascade() {
+        return fastCascade.distance(ref, bounds);
+    }
+
+    @Benchmark
+    public double primitiveDtwCascade() {
+        return primitiveCascade.distance(ref, bounds);
+    }
+}
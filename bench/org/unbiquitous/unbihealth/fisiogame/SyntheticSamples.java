@@ -0,0 +1,70 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates IMU recordings resembling a single exercise repetition: the sensor rests, rotates smoothly up to a peak
+ * angle around a slowly drifting axis and back, then rests again. Sensor noise and timestamp jitter are added so
+ * trimming and DTW see realistic data.
+ */
+final class SyntheticSamples {
+    private SyntheticSamples() {
+    }
+
+    /**
+     * @param rate    sampling rate, in Hz.
+     * @param seconds total length of the recording, including 10% of rest at each end.
+     * @param seed    seed for the peak angle, axis and noise, so different seeds give similar but distinct curves.
+     */
+    static List<Sample> gesture(int rate, double seconds, long seed) {
+        Random rnd = new Random(seed);
+        int n = Math.max(2, (int) (rate * seconds));
+        double peak = Math.toRadians(60 + 30 * rnd.nextDouble());
+        double ax = 1, ay = 0.2 * rnd.nextGaussian(), az = 0.2 * rnd.nextGaussian();
+
+        List<Sample> samples = new ArrayList<>(n);
+        double period = 1000.0 / rate;
+        for (int k = 0; k < n; ++k) {
+            double u = (k / (double) (n - 1) - 0.1) / 0.8;
+            double angle = ((u <= 0) || (u >= 1)) ? 0 : peak * (1 - Math.cos(2 * Math.PI * u)) / 2;
+            angle += 0.002 * rnd.nextGaussian();
+
+            double drift = 0.1 * Math.sin(Math.PI * u);
+            double x = ax, y = ay + drift, z = az - drift;
+            double norm = Math.sqrt(x * x + y * y + z * z);
+            double sin = Math.sin(angle / 2) / norm;
+            Quaternion q = new Quaternion(Math.cos(angle / 2), x * sin, y * sin, z * sin);
+
+            long timestamp = (long) (k * period + rnd.nextDouble() * 0.1 * period);
+            samples.add(new Sample(timestamp, q));
+        }
+        return samples;
+    }
+
+    /**
+     * Discards everything, so output formatting can be measured without disk I/O.
+     */
+    static final Writer NULL_WRITER = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+}
@@ -0,0 +1,152 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Finds the reference curves closest to a curve, narrowing them down with a {@link TemplateIndex} and spreading the
+ * full comparisons over a pool of worker threads, either its own or one shared with other sessions.
+ */
+class Classifier {
+    static final class Match implements Comparable<Match> {
+        final String curveId;
+        final double distance;
+
+        Match(String curveId, double distance) {
+            this.curveId = curveId;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Match o) {
+            return Double.compare(distance, o.distance);
+        }
+
+        @Override
+        public String toString() {
+            return curveId + ": " + (Double.isInfinite(distance) ? "pruned" : distance);
+        }
+    }
+
+    private final ExecutorService pool;
+    private final Executor executor;
+    private final int threads;
+    private final DtwCascade cascade;
+    private volatile int lastCompared;
+
+    Classifier(int threads, DtwCascade cascade) {
+        this.threads = threads;
+        this.cascade = cascade;
+        executor = pool = Executors.newFixedThreadPool(threads, Threads.daemon("classifier-"));
+    }
+
+    /**
+     * Creates a classifier that runs its comparisons on a shared executor, left running by {@link #shutdown()}.
+     *
+     * @param threads number of comparisons submitted at once.
+     */
+    Classifier(Executor executor, int threads, DtwCascade cascade) {
+        this.threads = threads;
+        this.cascade = cascade;
+        this.executor = executor;
+        pool = null;
+    }
+
+    /**
+     * Returns the {@code k} templates closest to the curve, best (lowest distance) first, leaving out the ones that
+     * can't be under the threshold.
+     * <p>
+     * Candidates are compared in the order given by the index, one wave of as many candidates as there are threads
+     * at a time. The search stops at the first candidate whose lower bound can't beat the {@code k} best distances
+     * found so far, so with a good index only a few templates are compared in full. Each comparison is also only
+     * looking for distances under those, so it can be abandoned early.
+     */
+    List<Match> classify(TimeSeries curve, TemplateIndex index, int k) throws InterruptedException {
+        try {
+            return classifyAsync(curve, index, k).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to compare curves.", e.getCause());
+        }
+    }
+
+    /**
+     * Same as {@link #classify}, without blocking the caller: the index is queried on the executor, and each wave is
+     * submitted once the previous one completes, so no thread waits on the comparisons, not even the executor's.
+     */
+    CompletableFuture<List<Match>> classifyAsync(final TimeSeries curve, final TemplateIndex index, final int k) {
+        return CompletableFuture.supplyAsync(() -> new Search(curve, index, k), executor).thenCompose(Search::wave);
+    }
+
+    /**
+     * State of a search between waves.
+     */
+    private final class Search {
+        final DtwCascade.Bounds bounds;
+        final List<TemplateIndex.Candidate> candidates;
+        final int k;
+        final List<Match> best;
+        int next;
+
+        Search(TimeSeries curve, TemplateIndex index, int k) {
+            this.k = k;
+            bounds = DtwCascade.bounds(curve);
+            candidates = index.candidates(bounds, cascade.getThreshold());
+            best = new ArrayList<>(k + threads);
+        }
+
+        /**
+         * Submits the next wave of comparisons, completing with the best matches once there are none left.
+         */
+        CompletableFuture<List<Match>> wave() {
+            final double cutoff = (best.size() < k) ? cascade.getThreshold() : best.get(k - 1).distance;
+            final List<CompletableFuture<Match>> wave = new ArrayList<>(threads);
+            while ((next < candidates.size()) && (wave.size() < threads) && (candidates.get(next).bound < cutoff)) {
+                final TemplateIndex.Candidate c = candidates.get(next++);
+                wave.add(CompletableFuture.supplyAsync(() -> {
+                    long start = System.nanoTime();
+                    Match m = new Match(c.id, cascade.distance(c.bounds, bounds, c.kernel, cutoff));
+                    Metrics.record("dtw", start);
+                    return m;
+                }, executor));
+            }
+            if (wave.isEmpty()) {
+                lastCompared = next;
+                Metrics.count("index.queries");
+                Metrics.count("index.compared", next);
+                return CompletableFuture.completedFuture(best);
+            }
+
+            return CompletableFuture.allOf(wave.toArray(new CompletableFuture<?>[wave.size()])).thenCompose((v) -> {
+                for (CompletableFuture<Match> f : wave) {
+                    Match m = f.join();
+                    if (!Double.isInfinite(m.distance))
+                        best.add(m);
+                }
+                Collections.sort(best);
+                while (best.size() > k)
+                    best.remove(best.size() - 1);
+                return wave();
+            });
+        }
+    }
+
+    /**
+     * Number of templates compared in full by the last call to {@link #classify}.
+     */
+    int getLastCompared() {
+        return lastCompared;
+    }
+
+    void shutdown() {
+        if (pool != null)
+            pool.shutdownNow();
+    }
+}
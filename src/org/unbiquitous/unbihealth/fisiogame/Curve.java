@@ -0,0 +1,115 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+import com.fastdtw.timeseries.TimeSeriesBase;
+
+import java.util.Arrays;
+
+/**
+ * A curve of quaternion deltas stored as flat primitive arrays, one per component (time, s, x, y, z).
+ * <p>
+ * Instances are meant to be reused: {@link #clear()} keeps the allocated storage, so refilling a curve of similar
+ * length doesn't generate garbage.
+ */
+final class Curve {
+    private static final int INITIAL_CAPACITY = 256;
+
+    double[] t, s, x, y, z;
+    int size;
+
+    Curve() {
+        this(INITIAL_CAPACITY);
+    }
+
+    Curve(int capacity) {
+        capacity = Math.max(capacity, 1);
+        t = new double[capacity];
+        s = new double[capacity];
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+    }
+
+    static Curve of(TimeSeries series) {
+        return of(series, 0);
+    }
+
+    /**
+     * Extracts the four dimensions of the series starting at {@code offset}, such as one sensor of a fused curve.
+     */
+    static Curve of(TimeSeries series, int offset) {
+        int n = series.size();
+        Curve c = new Curve(n);
+        for (int i = 0; i < n; ++i)
+            c.add(series.getTimeAtNthPoint(i), series.getMeasurement(i, offset), series.getMeasurement(i, offset + 1),
+                    series.getMeasurement(i, offset + 2), series.getMeasurement(i, offset + 3));
+        return c;
+    }
+
+    /**
+     * Splits a series with one group of four dimensions per sensor into one curve per sensor.
+     */
+    static Curve[] split(TimeSeries series) {
+        int dims = series.numOfDimensions();
+        if ((dims == 0) || (dims % 4 != 0))
+            throw new IllegalArgumentException("series dimensions are not a multiple of 4: " + dims);
+        Curve[] curves = new Curve[dims / 4];
+        for (int k = 0; k < curves.length; ++k)
+            curves[k] = of(series, 4 * k);
+        return curves;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity <= t.length)
+            return;
+        capacity = Math.max(capacity, t.length + (t.length >> 1));
+        t = Arrays.copyOf(t, capacity);
+        s = Arrays.copyOf(s, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+    }
+
+    void add(double time, double s, double x, double y, double z) {
+        if (size == t.length)
+            ensureCapacity(size + 1);
+        this.t[size] = time;
+        this.s[size] = s;
+        this.x[size] = x;
+        this.y[size] = y;
+        this.z[size] = z;
+        ++size;
+    }
+
+    TimeSeries toTimeSeries() {
+        return toTimeSeries(new Curve[]{this});
+    }
+
+    /**
+     * Joins curves sampled at the same times into a single series, with four dimensions per curve.
+     */
+    static TimeSeries toTimeSeries(Curve[] curves) {
+        TimeSeriesBase.Builder builder = TimeSeriesBase.builder();
+        int n = curves[0].size;
+        for (int i = 0; i < n; ++i) {
+            double[] v = new double[4 * curves.length];
+            for (int k = 0; k < curves.length; ++k) {
+                Curve c = curves[k];
+                v[4 * k] = c.s[i];
+                v[4 * k + 1] = c.x[i];
+                v[4 * k + 2] = c.y[i];
+                v[4 * k + 3] = c.z[i];
+            }
+            builder.add(curves[0].t[i], v);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,96 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of processed curves, stored as trimmed {@link CurveFile}s.
+ * <p>
+ * Entries are keyed by the absolute path, modification time and size of the source file, plus a version string for
+ * the preprocessing itself and the {@link Resampler} settings, so editing a recording or changing how curves are
+ * processed simply misses the cache.
+ * Stale entries are never read again, and can be removed by deleting the cache directory.
+ */
+class CurveCache {
+    /**
+     * Changes whenever processed curves stop being comparable with the ones already cached.
+     */
+    static final String PREPROCESSING_VERSION = "2";
+
+    static Path defaultDirectory() {
+        String dir = System.getProperty("fisiogame.cache");
+        if (dir != null)
+            return Paths.get(dir);
+        return Paths.get(System.getProperty("user.home"), ".fisiogame", "curve-cache");
+    }
+
+    private final Path dir;
+
+    CurveCache(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the cached curve for the file, or {@code null} if there is none.
+     */
+    TimeSeries get(Path source) throws IOException {
+        Path entry = entry(source);
+        try {
+            return CurveFile.read(entry);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or partially written entries are dropped and rebuilt; a cache never fails a load.
+            try {
+                Files.deleteIfExists(entry);
+            } catch (IOException ignored) {
+                // Rewritten by the next put.
+            }
+            return null;
+        }
+    }
+
+    void put(Path source, TimeSeries curve) throws IOException {
+        Files.createDirectories(dir);
+        Path entry = entry(source);
+        Path tmp = Files.createTempFile(dir, "entry", ".tmp");
+        try {
+            CurveFile.write(tmp, curve, (short) 0);
+            Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Path entry(Path source) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        String key = source.toAbsolutePath().normalize() + "\n" + attrs.lastModifiedTime().toMillis() + "\n"
+                + attrs.size() + "\n" + PREPROCESSING_VERSION;
+        // Curves not resampled keep the keys they had before resampling existed.
+        if (Resampler.CONFIGURED.isEnabled())
+            key += "\n" + Resampler.CONFIGURED;
+        return dir.resolve(sha1(key) + CurveFile.EXTENSION);
+    }
+
+    private static String sha1(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(Charset.forName("UTF-8")));
+            StringBuilder sb = new StringBuilder(2 * digest.length);
+            for (byte b : digest)
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 not available.", e);
+        }
+    }
+}
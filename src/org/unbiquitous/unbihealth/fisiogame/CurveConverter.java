@@ -0,0 +1,106 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts recordings saved as JSON or CSV into the binary {@link CurveFile} format.
+ * <p>
+ * Usage: {@code CurveConverter [--float] [--delta] file...}. Each file is written next to the original, with the
+ * {@link CurveFile#EXTENSION} extension. JSON recordings and raw CSV exports are stored untrimmed; trimmed CSV exports
+ * ({@code *-trimmed.csv}) are stored as processed curves.
+ */
+public class CurveConverter {
+    public static void main(String[] args) {
+        short flags = 0;
+        List<Path> paths = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--float"))
+                flags |= CurveFile.FLOAT;
+            else if (arg.equals("--delta"))
+                flags |= CurveFile.DELTA;
+            else
+                paths.add(Paths.get(arg));
+        }
+        if (paths.isEmpty()) {
+            System.err.println("Usage: CurveConverter [--float] [--delta] file...");
+            System.exit(1);
+        }
+
+        int failures = 0;
+        for (Path path : paths) {
+            try {
+                Path out = convert(path, flags);
+                System.out.println(path + " -> " + out);
+            } catch (Exception e) {
+                System.err.println("Failed to convert '" + path + "':");
+                e.printStackTrace();
+                ++failures;
+            }
+        }
+        System.exit(failures == 0 ? 0 : 2);
+    }
+
+    static Path convert(Path path, short flags) throws IOException {
+        String name = path.getFileName().toString();
+        String lower = name.toLowerCase();
+        Curve[] curves;
+        if (lower.endsWith(".json")) {
+            String json = new String(Files.readAllBytes(path), Charset.forName("UTF-8"));
+            curves = Curves.align(new ArrayList<>(Curves.parseRecordings(json).values()));
+        } else if (lower.endsWith(".csv")) {
+            curves = readCSV(path);
+            flags |= lower.endsWith("-trimmed.csv") ? CurveFile.TRIMMED : CurveFile.RELATIVE;
+        } else
+            throw new IOException("Unknown file type: " + path);
+
+        int dot = name.lastIndexOf('.');
+        Path out = path.resolveSibling(name.substring(0, dot) + CurveFile.EXTENSION);
+        CurveFile.write(out, curves, flags);
+        return out;
+    }
+
+    /**
+     * Reads a CSV export: a time column followed by groups of s, x, y and z columns, one group per sensor. Decimal
+     * commas, as written by some locales, are accepted.
+     */
+    static Curve[] readCSV(Path path) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(path, Charset.forName("UTF-8"))) {
+            String header = in.readLine();
+            if (header == null)
+                throw new IOException("Empty file: " + path);
+            int columns = header.split(";").length;
+            if ((columns < 5) || ((columns - 1) % 4 != 0))
+                throw new IOException("Unexpected CSV header: " + header);
+
+            Curve[] curves = new Curve[(columns - 1) / 4];
+            for (int k = 0; k < curves.length; ++k)
+                curves[k] = new Curve();
+            String line;
+            int lineNumber = 1;
+            while ((line = in.readLine()) != null) {
+                ++lineNumber;
+                if (line.trim().isEmpty())
+                    continue;
+                String[] v = line.replace(',', '.').split(";");
+                if (v.length != columns)
+                    throw new IOException("Unexpected number of columns at line " + lineNumber + ": " + path);
+                try {
+                    double t = Double.parseDouble(v[0]);
+                    for (int k = 0; k < curves.length; ++k)
+                        curves[k].add(t, Double.parseDouble(v[4 * k + 1]), Double.parseDouble(v[4 * k + 2]),
+                                Double.parseDouble(v[4 * k + 3]), Double.parseDouble(v[4 * k + 4]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid number at line " + lineNumber + ": " + path, e);
+                }
+            }
+            return curves;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact binary storage for curves, read in a single pass into a heap buffer. Files are not memory-mapped: a mapping
+ * stays open until it is garbage collected, and on Windows that keeps the file from being deleted or replaced, as the
+ * cache and saved recordings do.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * int    magic ("FGCV")
+ * short  version
+ * short  flags
+ * int    number of sensors
+ * int    number of samples
+ * long   base timestamp
+ * times  one per sample, relative to the base timestamp: int deltas from the previous sample if {@link #DELTA}
+ *        is set, long offsets otherwise
+ * values for each sensor, all s components, then all x, y and z components: floats if {@link #FLOAT} is set,
+ *        doubles otherwise
+ * </pre>
+ * All sensors share the same timestamps. Values are raw quaternions, unless {@link #RELATIVE} is set (quaternion
+ * deltas, as exported to CSV) or {@link #TRIMMED} is set (already processed, ready to be matched).
+ */
+final class CurveFile {
+    static final String EXTENSION = ".fgc";
+
+    static final short FLOAT = 0x01;
+    static final short DELTA = 0x02;
+    static final short RELATIVE = 0x04;
+    static final short TRIMMED = 0x08;
+
+    private static final int MAGIC = 0x46474356;
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private CurveFile() {
+    }
+
+    /**
+     * Reads a file and returns the processed curve, trimming it unless it was stored already trimmed. Raw quaternions
+     * and deltas go through {@link Resampler#CONFIGURED} first, like recordings do.
+     *
+     * @throws IOException also if the file is already trimmed but not at the rate {@link Resampler#CONFIGURED} asks
+     *                     for, as its distances wouldn't be comparable with the ones of resampled curves.
+     */
+    static TimeSeries read(Path path) throws IOException {
+        short[] flags = new short[1];
+        Curve[] curves = readCurves(path, flags);
+        if ((flags[0] & TRIMMED) != 0) {
+            Resampler r = Resampler.CONFIGURED;
+            if (r.isEnabled() && !r.isResampled(curves[0]))
+                throw new IOException("Trimmed curve not sampled every " + r.periodMillis * r.decimation
+                        + " ms, as set by " + r + "; convert it from the untrimmed recording: " + path);
+            return Curve.toTimeSeries(curves);
+        }
+        if ((flags[0] & RELATIVE) != 0)
+            curves = Resampler.CONFIGURED.applyDeltas(curves);
+        else
+            curves = Resampler.CONFIGURED.apply(curves);
+        return Curves.trim(curves);
+    }
+
+    /**
+     * Reads the curves stored in a file as they are, one per sensor, with absolute timestamps.
+     *
+     * @param flags receives the flags of the file in its first position.
+     * @throws IOException if the file is not a curve file, or its size doesn't match its header.
+     */
+    static Curve[] readCurves(Path path, short[] flags) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Curve file too large: " + path);
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining())
+                if (ch.read(buf) < 0)
+                    throw new IOException("Curve file truncated while reading: " + path);
+            buf.flip();
+            if ((buf.remaining() < HEADER_SIZE) || (buf.getInt() != MAGIC))
+                throw new IOException("Not a curve file: " + path);
+            short version = buf.getShort();
+            if (version != VERSION)
+                throw new IOException("Unsupported curve file version " + version + ": " + path);
+            flags[0] = buf.getShort();
+            int sensors = buf.getInt(), n = buf.getInt();
+            long base = buf.getLong();
+            if ((sensors <= 0) || (n <= 0))
+                throw new IOException("Empty curve file: " + path);
+            // Checked before allocating anything, so a corrupt header can't ask for more than the file holds.
+            long expected = HEADER_SIZE + (long) n * (((flags[0] & DELTA) != 0) ? 4 : 8)
+                    + 4L * n * sensors * (((flags[0] & FLOAT) != 0) ? 4 : 8);
+            if (expected != buf.capacity())
+                throw new IOException("Truncated or corrupt curve file, " + buf.capacity() + " bytes for "
+                        + sensors + " sensors of " + n + " samples: " + path);
+
+            Curve[] curves = new Curve[sensors];
+            for (int k = 0; k < sensors; ++k) {
+                curves[k] = new Curve(n);
+                curves[k].size = n;
+            }
+
+            double[] t = curves[0].t;
+            if ((flags[0] & DELTA) != 0) {
+                long time = 0;
+                for (int i = 0; i < n; ++i)
+                    t[i] = (time += buf.getInt());
+            } else {
+                for (int i = 0; i < n; ++i)
+                    t[i] = buf.getLong();
+            }
+            for (int i = 0; i < n; ++i)
+                t[i] += base;
+            for (int k = 1; k < sensors; ++k)
+                System.arraycopy(t, 0, curves[k].t, 0, n);
+
+            boolean floats = (flags[0] & FLOAT) != 0;
+            for (Curve c : curves) {
+                readValues(buf, floats, c.s, n);
+                readValues(buf, floats, c.x, n);
+                readValues(buf, floats, c.y, n);
+                readValues(buf, floats, c.z, n);
+            }
+            return curves;
+        }
+    }
+
+    /**
+     * Writes curves sampled at the same times, one per sensor.
+     *
+     * @param flags any combination of {@link #FLOAT}, {@link #DELTA}, {@link #RELATIVE} and {@link #TRIMMED}.
+     */
+    static void write(Path path, Curve[] curves, short flags) throws IOException {
+        final int n = curves[0].size;
+        if (n == 0)
+            throw new IOException("Empty curve.");
+        final boolean delta = (flags & DELTA) != 0, floats = (flags & FLOAT) != 0;
+        long size = HEADER_SIZE + (long) n * (delta ? 4 : 8) + 4L * n * curves.length * (floats ? 4 : 8);
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Curve too large: " + n + " samples");
+
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        long base = (long) curves[0].t[0];
+        buf.putInt(MAGIC);
+        buf.putShort(VERSION);
+        buf.putShort(flags);
+        buf.putInt(curves.length);
+        buf.putInt(n);
+        buf.putLong(base);
+
+        double[] t = curves[0].t;
+        long prev = base;
+        for (int i = 0; i < n; ++i) {
+            long time = (long) t[i];
+            if (delta) {
+                long d = time - prev;
+                if ((d < Integer.MIN_VALUE) || (d > Integer.MAX_VALUE))
+                    throw new IOException("Timestamp gap too large for delta encoding: " + d);
+                buf.putInt((int) d);
+                prev = time;
+            } else
+                buf.putLong(time - base);
+        }
+        for (Curve c : curves) {
+            writeValues(buf, floats, c.s, n);
+            writeValues(buf, floats, c.x, n);
+            writeValues(buf, floats, c.y, n);
+            writeValues(buf, floats, c.z, n);
+        }
+        buf.flip();
+
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining())
+                ch.write(buf);
+        }
+    }
+
+    /**
+     * Writes an already processed curve, as returned by {@link Curves#processCurve}.
+     */
+    static void write(Path path, TimeSeries curve, short flags) throws IOException {
+        write(path, Curve.split(curve), (short) (flags | TRIMMED));
+    }
+
+    private static void readValues(ByteBuffer buf, boolean floats, double[] v, int n) {
+        if (floats) {
+            for (int i = 0; i < n; ++i)
+                v[i] = buf.getFloat();
+        } else {
+            buf.asDoubleBuffer().get(v, 0, n);
+            buf.position(buf.position() + 8 * n);
+        }
+    }
+
+    private static void writeValues(ByteBuffer buf, boolean floats, double[] v, int n) {
+        if (floats) {
+            for (int i = 0; i < n; ++i)
+                buf.putFloat((float) v[i]);
+        } else {
+            buf.asDoubleBuffer().put(v, 0, n);
+            buf.position(buf.position() + 8 * n);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Plots the four quaternion delta channels of a curve, either live while recording or once retrieved, along with the
+ * reference curve it was matched with and their DTW alignment path.
+ * <p>
+ * Curves are decimated to the width of the plot: each pixel column is drawn as the range between the smallest and
+ * largest value of the points it covers, joined to the next column, which looks the same as drawing every point but
+ * costs one line per column. Frames are rendered off the event dispatch thread, into a back buffer that is swapped
+ * with the one being painted once complete. A timer checks about 60 times a second whether the data or the size
+ * changed, and never starts a frame while the previous one is still rendering, so a long session can't pile up work
+ * or hold up the user interface.
+ * <p>
+ * Samples can be fed from any thread.
+ */
+class CurvePlot extends JPanel implements SampleSink {
+    private static final int FRAME_MILLIS = 16;
+    private static final int MARGIN = 4;
+    private static final double MIN_RANGE = 0.1;
+    private static final String[] CHANNEL_NAMES = {"s", "x", "y", "z"};
+    private static final Color[] CHANNEL_COLORS = {
+            new Color(0xd62728), new Color(0x2ca02c), new Color(0x1f77b4), new Color(0xff7f0e)};
+    private static final Color BACKGROUND = Color.white, AXIS = Color.lightGray, TEXT = Color.darkGray;
+
+    private static final Executor RENDERER = Executors.newSingleThreadExecutor(Threads.daemon("plot-"));
+
+    // Guarded by this.
+    private final Curve curve = new Curve();
+    private Curve reference;
+    private int[][] path;
+    // Curves still to be aligned, once the plot is rendered.
+    private Curve[] alignA, alignB;
+    private QuaternionDistance kernel;
+    private boolean hasBase;
+    private double bw, bx, by, bz;
+    private long version;
+
+    // Only accessed on the event dispatch thread, or by the renderer while rendering is set.
+    private BufferedImage front, back;
+    private long renderedVersion = -1;
+    private boolean rendering;
+
+    private final Timer timer = new Timer(FRAME_MILLIS, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            nextFrame();
+        }
+    });
+
+    CurvePlot() {
+        setPreferredSize(new Dimension(800, 500));
+    }
+
+    /**
+     * Clears the plot for a new live recording.
+     */
+    synchronized void start() {
+        curve.clear();
+        reference = null;
+        path = null;
+        alignA = alignB = null;
+        kernel = null;
+        hasBase = false;
+        ++version;
+    }
+
+    /**
+     * Adds a raw live sample, plotted relative to the first one since {@link #start()}.
+     */
+    @Override
+    public synchronized void accept(long timestamp, double w, double x, double y, double z) {
+        if (!hasBase) {
+            hasBase = true;
+            bw = w;
+            bx = x;
+            by = y;
+            bz = z;
+        }
+        curve.add(timestamp, w - bw, x - bx, y - by, z - bz);
+        ++version;
+    }
+
+    /**
+     * Shows the first sensor of a processed curve against the reference it was compared with, as split by
+     * {@link Curve#split}, and their alignment by {@link PrimitiveDtw#path}.
+     * <p>
+     * The alignment is computed by the renderer, only once the plot is displayed, so showing a result never delays
+     * it. It is left out for curves too long for it, or with a different number of sensors.
+     */
+    synchronized void show(Curve[] processed, Curve[] reference, QuaternionDistance kernel) {
+        Curve c = processed[0];
+        curve.clear();
+        for (int i = 0; i < c.size; ++i)
+            curve.add(c.t[i], c.s[i], c.x[i], c.y[i], c.z[i]);
+        this.reference = reference[0];
+        path = null;
+        boolean fits = (processed.length == reference.length)
+                && ((long) c.size * reference[0].size <= PrimitiveDtw.MAX_PATH_CELLS);
+        alignA = fits ? processed : null;
+        alignB = fits ? reference : null;
+        this.kernel = fits ? kernel : null;
+        hasBase = true;
+        ++version;
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        timer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (front != null)
+            g.drawImage(front, 0, 0, null);
+    }
+
+    private void nextFrame() {
+        final int width = getWidth(), height = getHeight();
+        if (rendering || (width <= 0) || (height <= 0))
+            return;
+        long v;
+        synchronized (this) {
+            v = version;
+        }
+        if ((v == renderedVersion) && (front != null) && (front.getWidth() == width)
+                && (front.getHeight() == height))
+            return;
+
+        rendering = true;
+        if ((back == null) || (back.getWidth() != width) || (back.getHeight() != height))
+            back = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final BufferedImage image = back;
+        RENDERER.execute(() -> {
+            long rendered = -1;
+            try {
+                rendered = render(image);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                final long r = rendered;
+                SwingUtilities.invokeLater(() -> {
+                    back = front;
+                    front = image;
+                    renderedVersion = r;
+                    rendering = false;
+                    repaint();
+                });
+            }
+        });
+    }
+
+    /**
+     * Decimated copy of a curve, one range of values per pixel column and channel.
+     */
+    private static final class Columns {
+        final int width;
+        final double[][] min = new double[4][], max = new double[4][], first = new double[4][], last = new double[4][];
+        final boolean[] filled;
+        double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+        int points;
+
+        Columns(Curve c, int width) {
+            this.width = width;
+            filled = new boolean[width];
+            for (int k = 0; k < 4; ++k) {
+                min[k] = new double[width];
+                max[k] = new double[width];
+                first[k] = new double[width];
+                last[k] = new double[width];
+            }
+            points = c.size;
+            if (c.size == 0)
+                return;
+            double t0 = c.t[0], span = Math.max(c.t[c.size - 1] - t0, 1);
+            double[][] values = {c.s, c.x, c.y, c.z};
+            for (int i = 0; i < c.size; ++i) {
+                int col = (int) ((c.t[i] - t0) / span * (width - 1));
+                boolean fresh = !filled[col];
+                filled[col] = true;
+                for (int k = 0; k < 4; ++k) {
+                    double v = values[k][i];
+                    if (fresh)
+                        min[k][col] = max[k][col] = first[k][col] = v;
+                    else {
+                        if (v < min[k][col])
+                            min[k][col] = v;
+                        if (v > max[k][col])
+                            max[k][col] = v;
+                    }
+                    last[k][col] = v;
+                    if (v < lo)
+                        lo = v;
+                    if (v > hi)
+                        hi = v;
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the current data into {@code image} and returns the version drawn.
+     */
+    private long render(BufferedImage image) {
+        align();
+        int width = image.getWidth(), height = image.getHeight();
+        int plotWidth = Math.max(1, width - 2 * MARGIN);
+        long v;
+        Columns curveColumns, referenceColumns = null;
+        int[][] alignment;
+        int curveSize, referenceSize = 0;
+        // Only the decimation runs with the data locked; drawing works on the copies.
+        synchronized (this) {
+            v = version;
+            curveColumns = new Columns(curve, plotWidth);
+            curveSize = curve.size;
+            if (reference != null) {
+                referenceColumns = new Columns(reference, plotWidth);
+                referenceSize = reference.size;
+            }
+            alignment = path;
+        }
+
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setColor(BACKGROUND);
+            g.fillRect(0, 0, width, height);
+            int strips = (referenceColumns == null) ? 1 : (alignment == null) ? 2 : 3;
+            int stripHeight = height / strips;
+            drawColumns(g, curveColumns, MARGIN, 0, stripHeight, "curve (" + curveSize + " points)");
+            if (referenceColumns != null)
+                drawColumns(g, referenceColumns, MARGIN, stripHeight, stripHeight,
+                        "reference (" + referenceSize + " points)");
+            if (alignment != null)
+                drawPath(g, alignment, curveSize, referenceSize, MARGIN, 2 * stripHeight, plotWidth, stripHeight);
+        } finally {
+            g.dispose();
+        }
+        return v;
+    }
+
+    /**
+     * Computes the pending alignment, if any, without holding the data locked meanwhile.
+     */
+    private void align() {
+        Curve[] a, b;
+        QuaternionDistance k;
+        long v;
+        synchronized (this) {
+            if (alignA == null)
+                return;
+            a = alignA;
+            b = alignB;
+            k = kernel;
+            v = version;
+        }
+        long start = System.nanoTime();
+        int[][] p = PrimitiveDtw.path(a, b, k);
+        Metrics.record("dtw.path", start);
+        synchronized (this) {
+            // Dropped if other data came meanwhile.
+            if (version == v) {
+                path = p;
+                alignA = alignB = null;
+                kernel = null;
+            }
+        }
+    }
+
+    private static void drawColumns(Graphics2D g, Columns c, int x0, int y0, int height, String title) {
+        g.setColor(AXIS);
+        g.drawRect(x0, y0 + MARGIN, c.width - 1, height - 2 * MARGIN);
+        int baseline = y0 + MARGIN + g.getFontMetrics().getAscent();
+        g.setColor(TEXT);
+        g.drawString(title, x0 + MARGIN, baseline);
+        int legend = x0 + c.width - MARGIN;
+        for (int k = 3; k >= 0; --k) {
+            legend -= g.getFontMetrics().stringWidth(CHANNEL_NAMES[k]) + MARGIN;
+            g.setColor(CHANNEL_COLORS[k]);
+            g.drawString(CHANNEL_NAMES[k], legend, baseline);
+        }
+        if (c.points == 0)
+            return;
+
+        double lo = c.lo, hi = c.hi;
+        if (hi - lo < MIN_RANGE) {
+            double mid = (hi + lo) / 2;
+            lo = mid - MIN_RANGE / 2;
+            hi = mid + MIN_RANGE / 2;
+        }
+        int top = y0 + 2 * MARGIN, plotHeight = Math.max(1, height - 4 * MARGIN);
+        double scale = plotHeight / (hi - lo);
+        int zero = top + (int) (hi * scale);
+        if ((zero > top) && (zero < top + plotHeight)) {
+            g.setColor(AXIS);
+            g.drawLine(x0, zero, x0 + c.width - 1, zero);
+        }
+
+        for (int k = 0; k < 4; ++k) {
+            g.setColor(CHANNEL_COLORS[k]);
+            double[] min = c.min[k], max = c.max[k], first = c.first[k], last = c.last[k];
+            int previous = -1;
+            for (int col = 0; col < c.width; ++col) {
+                if (!c.filled[col])
+                    continue;
+                int x = x0 + col;
+                g.drawLine(x, top + (int) ((hi - max[col]) * scale), x, top + (int) ((hi - min[col]) * scale));
+                if (previous >= 0)
+                    g.drawLine(x0 + previous, top + (int) ((hi - last[previous]) * scale),
+                            x, top + (int) ((hi - first[col]) * scale));
+                previous = col;
+            }
+        }
+    }
+
+    /**
+     * Draws the warp path in the plane of the indices of both curves, against the diagonal of a uniform alignment.
+     */
+    private static void drawPath(Graphics2D g, int[][] path, int n, int m, int x0, int y0, int width, int height) {
+        int top = y0 + MARGIN, plotHeight = Math.max(1, height - 2 * MARGIN);
+        g.setColor(AXIS);
+        g.drawRect(x0, top, width - 1, plotHeight);
+        g.drawLine(x0, top + plotHeight, x0 + width - 1, top);
+        g.setColor(TEXT);
+        g.drawString("alignment", x0 + MARGIN, top + g.getFontMetrics().getAscent());
+        if ((n < 2) || (m < 2))
+            return;
+
+        // Consecutive path points often fall on the same pixel; only changes are drawn.
+        int[] xs = new int[path[0].length], ys = new int[path[0].length];
+        int points = 0;
+        for (int k = 0; k < path[0].length; ++k) {
+            int x = x0 + (int) ((long) path[0][k] * (width - 1) / (n - 1));
+            int y = top + plotHeight - (int) ((long) path[1][k] * plotHeight / (m - 1));
+            if ((points == 0) || (x != xs[points - 1]) || (y != ys[points - 1])) {
+                xs[points] = x;
+                ys[points] = y;
+                ++points;
+            }
+        }
+        g.setColor(Color.black);
+        g.setStroke(new BasicStroke(1.5f));
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.drawPolyline(Arrays.copyOf(xs, points), Arrays.copyOf(ys, points), points);
+    }
+}
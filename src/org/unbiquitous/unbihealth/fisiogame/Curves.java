@@ -0,0 +1,304 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+import com.fastdtw.util.DistanceFunction;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormatSymbols;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Curve preprocessing shared by the recording, matching and loading paths.
+ */
+final class Curves {
+    /**
+     * Maximum absolute quaternion component delta still considered "at rest".
+     */
+    static final double CURVE_THRESHOLD = 0.025;
+
+    /**
+     * DTW distances below this value are accepted as a match.
+     */
+    static final double MATCH_THRESHOLD = 20;
+
+    static final DistanceFunction WORST_DIST = new DistanceFunction() {
+        @Override
+        public double calcDistance(double[] v1, double[] v2) {
+            if (v1.length != v2.length)
+                throw new RuntimeException("vectors sizes don't match");
+            double max = Double.MIN_VALUE;
+            for (int i = 0; i < v1.length; ++i)
+                max = Math.max(max, Math.abs(v1[i] - v2[i]));
+            return max;
+        }
+    };
+
+    private Curves() {
+    }
+
+    /**
+     * Trims a recording to the span where the sensor is moving, as quaternion deltas from its first sample, with
+     * times relative to the start of the motion. See {@link Trimmer}.
+     */
+    static TimeSeries processCurve(List<Sample> list) {
+        return processCurve(list, new Curve(list.size())).toTimeSeries();
+    }
+
+    /**
+     * Same as {@link #processCurve(List)}, but fills a reusable {@link Curve} instead of allocating a new series.
+     */
+    static Curve processCurve(List<Sample> list, Curve out) {
+        Trimmer trimmer = new Trimmer(out, 0, null);
+        for (int i = 0, n = list.size(); i < n; ++i) {
+            Sample sample = list.get(i);
+            Quaternion q = sample.getQuaternion();
+            trimmer.accept(sample.getTimestamp(), q.getQ0(), q.getQ1(), q.getQ2(), q.getQ3());
+        }
+        return trimmer.finish();
+    }
+
+    static boolean atRest(double ds, double dx, double dy, double dz) {
+        return (Math.abs(ds) <= CURVE_THRESHOLD) && (Math.abs(dx) <= CURVE_THRESHOLD)
+                && (Math.abs(dy) <= CURVE_THRESHOLD) && (Math.abs(dz) <= CURVE_THRESHOLD);
+    }
+
+    /**
+     * Trims recordings of several sensors taken at the same time and joins them into a single series, with the four
+     * quaternion delta dimensions of each sensor in turn.
+     * <p>
+     * The samples of every sensor are linearly interpolated at the timestamps of the first one, within the span
+     * covered by all of them, and then go through {@link Resampler#CONFIGURED}, if enabled. The series goes from the
+     * first sensor to start moving to the last one to stop.
+     */
+    static TimeSeries fuse(List<List<Sample>> recordings) {
+        long start = System.nanoTime();
+        try {
+            if (Resampler.CONFIGURED.isEnabled())
+                return trim(Resampler.CONFIGURED.apply(align(recordings)));
+            if (recordings.size() == 1)
+                return processCurve(recordings.get(0));
+            return trim(align(recordings));
+        } finally {
+            Metrics.record("trim", start);
+        }
+    }
+
+    /**
+     * Same as {@link #fuse(List)}, for raw curves with absolute timestamps, one per sensor.
+     */
+    static TimeSeries fuse(Curve[] raw) {
+        long start = System.nanoTime();
+        try {
+            if (Resampler.CONFIGURED.isEnabled())
+                return trim(Resampler.CONFIGURED.apply(align(raw)));
+            if (raw.length == 1) {
+                Curve c = raw[0];
+                Trimmer trimmer = new Trimmer(new Curve(c.size), 0, null);
+                for (int i = 0; i < c.size; ++i)
+                    trimmer.accept((long) c.t[i], c.s[i], c.x[i], c.y[i], c.z[i]);
+                return trimmer.finish().toTimeSeries();
+            }
+            return trim(align(raw));
+        } finally {
+            Metrics.record("trim", start);
+        }
+    }
+
+    /**
+     * Samples the raw quaternions of every recording at the timestamps of the first one, within the span covered by
+     * all of them, giving one curve per recording.
+     */
+    static Curve[] align(List<List<Sample>> recordings) {
+        Curve[] raw = new Curve[recordings.size()];
+        for (int k = 0; k < raw.length; ++k)
+            raw[k] = toCurve(recordings.get(k));
+        return align(raw);
+    }
+
+    /**
+     * Same as {@link #align(List)}, for raw curves with absolute timestamps.
+     */
+    static Curve[] align(Curve[] raw) {
+        double from = Double.NEGATIVE_INFINITY, to = Double.POSITIVE_INFINITY;
+        for (Curve c : raw) {
+            from = Math.max(from, c.t[0]);
+            to = Math.min(to, c.t[c.size - 1]);
+        }
+        Curve grid = new Curve(raw[0].size);
+        for (int i = 0; i < raw[0].size; ++i)
+            if ((raw[0].t[i] >= from) && (raw[0].t[i] <= to))
+                grid.add(raw[0].t[i], 0, 0, 0, 0);
+        if (grid.size == 0)
+            throw new IllegalArgumentException("recordings don't overlap in time");
+
+        Curve[] curves = new Curve[raw.length];
+        for (int k = 0; k < curves.length; ++k)
+            curves[k] = interpolate(raw[k], grid);
+        return curves;
+    }
+
+    /**
+     * Copies the raw quaternions of a recording into a curve, with absolute timestamps.
+     */
+    static Curve toCurve(List<Sample> samples) {
+        Curve c = new Curve(samples.size());
+        for (Sample s : samples) {
+            Quaternion q = s.getQuaternion();
+            c.add(s.getTimestamp(), q.getQ0(), q.getQ1(), q.getQ2(), q.getQ3());
+        }
+        return c;
+    }
+
+    /**
+     * Trims raw curves sampled at the same times, from the first one to start moving to the last one to stop, and
+     * makes them relative to their first point.
+     */
+    static TimeSeries trim(Curve[] curves) {
+        final int n = curves[0].size;
+        int first = n - 1, last = 0;
+        for (Curve c : curves) {
+            int f = 0, l = n - 1;
+            while ((f < l) && atRest(c.s[f] - c.s[0], c.x[f] - c.x[0], c.y[f] - c.y[0], c.z[f] - c.z[0]))
+                ++f;
+            while ((l > f) && atRest(c.s[l] - c.s[n - 1], c.x[l] - c.x[n - 1], c.y[l] - c.y[n - 1],
+                    c.z[l] - c.z[n - 1]))
+                --l;
+            first = Math.min(first, f);
+            last = Math.max(last, l);
+        }
+        last = Math.max(first, last);
+
+        Curve[] trimmed = new Curve[curves.length];
+        for (int k = 0; k < curves.length; ++k) {
+            Curve c = curves[k];
+            Curve t = trimmed[k] = new Curve(last - first + 1);
+            for (int i = first; i <= last; ++i)
+                t.add(c.t[i] - c.t[first], c.s[i] - c.s[0], c.x[i] - c.x[0], c.y[i] - c.y[0], c.z[i] - c.z[0]);
+        }
+        return Curve.toTimeSeries(trimmed);
+    }
+
+    /**
+     * Samples the raw quaternions of a recording at the times of {@code grid}, interpolating linearly.
+     */
+    private static Curve interpolate(Curve raw, Curve grid) {
+        Curve c = new Curve(grid.size);
+        int j = 0;
+        for (int i = 0; i < grid.size; ++i) {
+            double t = grid.t[i];
+            while ((j < raw.size - 2) && (raw.t[j + 1] <= t))
+                ++j;
+            int a = j, b = Math.min(j + 1, raw.size - 1);
+            double span = raw.t[b] - raw.t[a];
+            double u = (span <= 0) ? 0 : Math.max(0, Math.min(1, (t - raw.t[a]) / span));
+            c.add(t, raw.s[a] + u * (raw.s[b] - raw.s[a]), raw.x[a] + u * (raw.x[b] - raw.x[a]),
+                    raw.y[a] + u * (raw.y[b] - raw.y[a]), raw.z[a] + u * (raw.z[b] - raw.z[a]));
+        }
+        return c;
+    }
+
+    /**
+     * Parses a recording file: either a single sensor's sample array, or an object with one sample array per sensor
+     * id, as saved for multi-sensor recordings.
+     */
+    static Map<String, List<Sample>> parseRecordings(String json) throws IOException {
+        Map<String, List<Sample>> recordings = new LinkedHashMap<>();
+        JsonNode root = new ObjectMapper().readTree(json);
+        if (root.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> it = root.fields();
+            while (it.hasNext()) {
+                Map.Entry<String, JsonNode> e = it.next();
+                recordings.put(e.getKey(), IMUDriver.extractRecordedData(e.getValue().toString()));
+            }
+        } else
+            recordings.put("", IMUDriver.extractRecordedData(json));
+        return recordings;
+    }
+
+    static double[] relativeTo(Quaternion q, Quaternion base) {
+        return new double[]{
+                q.getQ0() - base.getQ0(),
+                q.getQ1() - base.getQ1(),
+                q.getQ2() - base.getQ2(),
+                q.getQ3() - base.getQ3()
+        };
+    }
+
+    /**
+     * Writes the samples as CSV, relative to the first one.
+     */
+    static void writeCSV(Writer out, List<Sample> curve) throws IOException {
+        out.write("t;s;x;y;z\n");
+        StringBuilder line = new StringBuilder(80);
+        Sample base = curve.get(0);
+        for (Sample s : curve) {
+            long t = s.getTimestamp() - base.getTimestamp();
+            double[] d = relativeTo(s.getQuaternion(), base.getQuaternion());
+            line.setLength(0);
+            line.append(t);
+            for (double v : d)
+                appendFixed(line.append(';'), v);
+            out.append(line.append('\n'));
+        }
+    }
+
+    /**
+     * Writes a processed curve as CSV. Fused curves get one group of columns per sensor, numbered from 1.
+     */
+    static void writeCSV(Writer out, TimeSeries curve) throws IOException {
+        int groups = curve.numOfDimensions() / 4;
+        if (groups == 1)
+            out.write("t;s;x;y;z\n");
+        else {
+            out.write("t");
+            for (int k = 1; k <= groups; ++k)
+                out.write(";s" + k + ";x" + k + ";y" + k + ";z" + k);
+            out.write("\n");
+        }
+        StringBuilder line = new StringBuilder(16 + 64 * groups);
+        for (int i = 0; i < curve.size(); ++i) {
+            double[] d = curve.getMeasurementVector(i);
+            line.setLength(0);
+            line.append((long) curve.getTimeAtNthPoint(i));
+            for (double v : d)
+                appendFixed(line.append(';'), v);
+            out.append(line.append('\n'));
+        }
+    }
+
+    private static final long FIXED_SCALE = 1000000000000L;
+
+    /**
+     * Decimal separator of the default locale, as the exports are opened with spreadsheets set to it.
+     */
+    private static final char DECIMAL_SEPARATOR = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+
+    /**
+     * Appends {@code v} with 12 decimal places, like {@code String.format("%.12f")} in the default locale, without
+     * the cost of parsing a format for every value. Values too large to scale into a long are formatted the slow way.
+     */
+    static void appendFixed(StringBuilder sb, double v) {
+        double abs = Math.abs(v);
+        if (!(abs < 1e6)) {
+            sb.append(String.format("%.12f", v));
+            return;
+        }
+        long scaled = Math.round(abs * FIXED_SCALE);
+        if (Double.doubleToRawLongBits(v) < 0)
+            sb.append('-');
+        long fraction = scaled % FIXED_SCALE;
+        sb.append(scaled / FIXED_SCALE).append(DECIMAL_SEPARATOR);
+        for (long d = FIXED_SCALE / 10; (d > fraction) && (d > 1); d /= 10)
+            sb.append('0');
+        sb.append(fraction);
+    }
+}
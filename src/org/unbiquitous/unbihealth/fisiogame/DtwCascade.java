@@ -0,0 +1,318 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.dtw.FastDTW;
+import com.fastdtw.timeseries.TimeSeries;
+import com.fastdtw.util.DistanceFunction;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs cheap lower bounds on the DTW distance before the full FastDTW comparison, skipping it whenever a bound
+ * already rules out a match.
+ * <p>
+ * The bounds hold for the sum-of-Chebyshev cost of any warp path, so they never exceed the distance FastDTW would
+ * report and pruning never rejects a curve that would have matched:
+ * <ul>
+ * <li>LB_Kim: every path starts at both first points and ends at both last points.</li>
+ * <li>LB_Keogh: every point of either curve is on the path at least once, so it costs at least its distance to the
+ * bounding box of the other curve. Since the comparison is not band-constrained, the envelope spans the whole
+ * curve.</li>
+ * </ul>
+ * For a sign-invariant {@link QuaternionDistance}, each sensor is bounded by the distance to whichever of {@code q}
+ * and {@code -q} is closer, the {@link QuaternionDistance#CHEBYSHEV_CANONICAL} distance, which none of them goes
+ * below for unit quaternions. For the distances that normalize the points first, that bound is reduced by the
+ * largest {@link QuaternionDistance#normError} of the sensor in each curve, as much as normalizing can move them.
+ * <p>
+ * Bounds for reference curves are cached, as they are compared over and over. The full comparison is done either
+ * by FastDTW or by the exact, allocation-free {@link PrimitiveDtw}, and only has to tell whether the distance is
+ * under a limit, the threshold or a better distance already found:
+ * <ul>
+ * <li>{@link PrimitiveDtw} abandons the comparison as soon as the cheapest partial path reaches the limit.</li>
+ * <li>FastDTW starts with its smallest search radius, and only widens it, up to {@link #MAX_RADIUS}, while the
+ * result is within {@link #NEAR_LIMIT} of the limit, where its approximation can change the outcome. Clear matches
+ * and clear mismatches are decided by the cheapest pass.</li>
+ * </ul>
+ * Safe to use from several threads.
+ */
+class DtwCascade {
+    /**
+     * Features of a curve used by the lower bounds.
+     */
+    static final class Bounds {
+        /**
+         * One curve per sensor, all sampled at the same times.
+         */
+        final Curve[] curves;
+        final int size;
+        final double[] first, last, min, max;
+        /**
+         * Largest {@link QuaternionDistance#normError} of each sensor.
+         */
+        final double[] normError;
+        private TimeSeries series;
+
+        private Bounds(TimeSeries series) {
+            this(Curve.split(series));
+            this.series = series;
+        }
+
+        private Bounds(Curve... curves) {
+            this.curves = curves;
+            size = curves[0].size;
+            int dims = 4 * curves.length;
+            first = new double[dims];
+            last = new double[dims];
+            min = new double[dims];
+            max = new double[dims];
+            normError = new double[curves.length];
+            for (int k = 0; k < curves.length; ++k) {
+                Curve c = curves[k];
+                scan(4 * k, c.s);
+                scan(4 * k + 1, c.x);
+                scan(4 * k + 2, c.y);
+                scan(4 * k + 3, c.z);
+                for (int i = 0; i < size; ++i)
+                    normError[k] = Math.max(normError[k], QuaternionDistance.normError(c.s[i], c.x[i], c.y[i], c.z[i]));
+            }
+        }
+
+        private void scan(int d, double[] v) {
+            int n = size;
+            double lo = v[0], hi = v[0];
+            for (int i = 1; i < n; ++i) {
+                if (v[i] < lo)
+                    lo = v[i];
+                else if (v[i] > hi)
+                    hi = v[i];
+            }
+            first[d] = v[0];
+            last[d] = v[n - 1];
+            min[d] = lo;
+            max[d] = hi;
+        }
+
+        synchronized TimeSeries series() {
+            if (series == null)
+                series = Curve.toTimeSeries(curves);
+            return series;
+        }
+    }
+
+    enum Engine {
+        /**
+         * Approximate comparison by the fastdtw library.
+         */
+        FASTDTW,
+        /**
+         * Exact comparison by {@link PrimitiveDtw}.
+         */
+        PRIMITIVE
+    }
+
+    /**
+     * Largest FastDTW search radius tried for results close to the limit.
+     */
+    static final int MAX_RADIUS = 16;
+
+    /**
+     * Fraction of the limit around it where FastDTW results are refined with a wider radius.
+     */
+    static final double NEAR_LIMIT = 0.25;
+
+    private final double threshold;
+    private final Engine engine;
+    private final ThreadLocal<PrimitiveDtw> dtw = ThreadLocal.withInitial(PrimitiveDtw::new);
+    private final Map<TimeSeries, Bounds> refBounds = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final AtomicLong comparisons = new AtomicLong();
+    private final AtomicLong kimPruned = new AtomicLong();
+    private final AtomicLong keoghPruned = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+    private final AtomicLong widened = new AtomicLong();
+
+    DtwCascade(double threshold, Engine engine) {
+        this.threshold = threshold;
+        this.engine = engine;
+    }
+
+    static Bounds bounds(TimeSeries series) {
+        return new Bounds(series);
+    }
+
+    static Bounds bounds(Curve... curves) {
+        return new Bounds(curves);
+    }
+
+    /**
+     * Returns the DTW distance between the curves, or {@link Double#POSITIVE_INFINITY} if a lower bound shows
+     * it can't be under the threshold. Curves recorded with a different number of sensors never match.
+     */
+    double distance(TimeSeries ref, Bounds curve) {
+        return distance(ref, curve, QuaternionDistance.CHEBYSHEV);
+    }
+
+    /**
+     * Same as {@link #distance(TimeSeries, Bounds)}, with another point distance.
+     */
+    double distance(TimeSeries ref, Bounds curve, QuaternionDistance kernel) {
+        return distance(refBounds.computeIfAbsent(ref, Bounds::new), curve, kernel);
+    }
+
+    /**
+     * Same as {@link #distance(TimeSeries, Bounds)}, for a reference whose bounds were already computed.
+     */
+    double distance(Bounds r, Bounds curve) {
+        return distance(r, curve, QuaternionDistance.CHEBYSHEV);
+    }
+
+    double distance(Bounds r, Bounds curve, QuaternionDistance kernel) {
+        return distance(r, curve, kernel, threshold);
+    }
+
+    /**
+     * Same as {@link #distance(Bounds, Bounds, QuaternionDistance)}, but only looking for distances under
+     * {@code limit}, if it is lower than the threshold.
+     */
+    double distance(Bounds r, Bounds curve, QuaternionDistance kernel, double limit) {
+        comparisons.incrementAndGet();
+        if (r.curves.length != curve.curves.length)
+            return Double.POSITIVE_INFINITY;
+
+        limit = Math.min(limit, threshold);
+        if (lbKim(r, curve, kernel) >= limit) {
+            kimPruned.incrementAndGet();
+            return Double.POSITIVE_INFINITY;
+        }
+        if ((lbKeogh(r, curve, kernel, limit) >= limit) || (lbKeogh(curve, r, kernel, limit) >= limit)) {
+            keoghPruned.incrementAndGet();
+            return Double.POSITIVE_INFINITY;
+        }
+        if (engine == Engine.PRIMITIVE) {
+            double d = dtw.get().distance(r.curves, curve.curves, Integer.MAX_VALUE, kernel, limit);
+            if (Double.isInfinite(d))
+                abandoned.incrementAndGet();
+            return d;
+        }
+
+        DistanceFunction f = (kernel == QuaternionDistance.CHEBYSHEV) ? Curves.WORST_DIST : kernel.function();
+        int radius = FastDTW.DEFAULT_SEARCH_RADIUS;
+        double d = FastDTW.compare(r.series(), curve.series(), radius, f).getDistance();
+        while ((radius < MAX_RADIUS) && (Math.abs(d - limit) < NEAR_LIMIT * limit)) {
+            radius *= 2;
+            d = Math.min(d, FastDTW.compare(r.series(), curve.series(), radius, f).getDistance());
+            widened.incrementAndGet();
+        }
+        return d;
+    }
+
+    double distance(TimeSeries ref, TimeSeries curve) {
+        return distance(ref, bounds(curve));
+    }
+
+    double getThreshold() {
+        return threshold;
+    }
+
+    long getComparisons() {
+        return comparisons.get();
+    }
+
+    long getKimPruned() {
+        return kimPruned.get();
+    }
+
+    long getKeoghPruned() {
+        return keoghPruned.get();
+    }
+
+    long getAbandoned() {
+        return abandoned.get();
+    }
+
+    /**
+     * Number of extra FastDTW passes with a wider radius.
+     */
+    long getWidened() {
+        return widened.get();
+    }
+
+    @Override
+    public String toString() {
+        long total = comparisons.get(), kim = kimPruned.get(), keogh = keoghPruned.get();
+        return "pruned " + (kim + keogh) + " of " + total + " comparisons (LB_Kim: " + kim + ", LB_Keogh: " + keogh
+                + "), abandoned " + abandoned.get() + ", widened " + widened.get();
+    }
+
+    /**
+     * Lower bound of the cost of the first and last cells of every warp path between both curves.
+     */
+    static double lbKim(Bounds a, Bounds b, QuaternionDistance kernel) {
+        double d0 = distance(a.first, b.first, a, b, kernel), d1 = distance(a.last, b.last, a, b, kernel);
+        // Single point curves have a single cell at both ends of the path.
+        if ((a.size == 1) || (b.size == 1))
+            return Math.max(d0, d1);
+        return d0 + d1;
+    }
+
+    /**
+     * Sums the distance from each point of {@code a} to the bounding box of {@code b}, stopping early once the
+     * limit is reached.
+     */
+    static double lbKeogh(Bounds a, Bounds b, QuaternionDistance kernel, double limit) {
+        final int n = a.size;
+        final boolean flip = kernel.isSignInvariant();
+        double sum = 0;
+        for (int i = 0; (i < n) && (sum < limit); ++i) {
+            double max = 0;
+            for (int k = 0, d = 0; k < a.curves.length; ++k, d += 4) {
+                final Curve c = a.curves[k];
+                final double slack = slack(a, b, k, kernel);
+                double same = Math.max(
+                        Math.max(outside(c.s[i], b.min[d], b.max[d]), outside(c.x[i], b.min[d + 1], b.max[d + 1])),
+                        Math.max(outside(c.y[i], b.min[d + 2], b.max[d + 2]),
+                                outside(c.z[i], b.min[d + 3], b.max[d + 3])));
+                if (flip && (same - slack > max)) {
+                    // -q as a delta is (-s - 2, -x, -y, -z).
+                    double flipped = Math.max(
+                            Math.max(outside(-c.s[i] - 2, b.min[d], b.max[d]),
+                                    outside(-c.x[i], b.min[d + 1], b.max[d + 1])),
+                            Math.max(outside(-c.y[i], b.min[d + 2], b.max[d + 2]),
+                                    outside(-c.z[i], b.min[d + 3], b.max[d + 3])));
+                    same = Math.min(same, flipped);
+                }
+                max = Math.max(max, same - slack);
+            }
+            sum += max;
+        }
+        return sum;
+    }
+
+    private static double outside(double v, double min, double max) {
+        return (v > max) ? v - max : ((v < min) ? min - v : 0);
+    }
+
+    /**
+     * How much lower than the bound of a sensor the distance between points of both curves can be, as normalizing
+     * moves them.
+     */
+    static double slack(Bounds a, Bounds b, int sensor, QuaternionDistance kernel) {
+        return kernel.isNormalized() ? a.normError[sensor] + b.normError[sensor] : 0;
+    }
+
+    /**
+     * Lower bound of the largest distance among the sensors between two points of {@code a} and {@code b}, given as
+     * four components per sensor.
+     */
+    private static double distance(double[] v1, double[] v2, Bounds a, Bounds b, QuaternionDistance kernel) {
+        QuaternionDistance bound = kernel.isSignInvariant() ? QuaternionDistance.CHEBYSHEV_CANONICAL
+                : QuaternionDistance.CHEBYSHEV;
+        double max = 0;
+        for (int i = 0, k = 0; i < v1.length; i += 4, ++k)
+            max = Math.max(max, bound.between(v1[i], v1[i + 1], v1[i + 2], v1[i + 3],
+                    v2[i], v2[i + 1], v2[i + 2], v2[i + 3]) - slack(a, b, k, kernel));
+        return max;
+    }
+}
@@ -0,0 +1,36 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import javax.swing.SwingUtilities;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs UI updates posted from any thread on the Swing event dispatch thread.
+ * <p>
+ * Updates are queued and drained in order by a single {@link SwingUtilities#invokeLater} call, so a burst of updates
+ * from background work costs one trip to the event queue instead of one per update.
+ */
+final class EdtQueue implements Executor {
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    @Override
+    public void execute(Runnable update) {
+        pending.add(update);
+        if (scheduled.compareAndSet(false, true))
+            SwingUtilities.invokeLater(this::drain);
+    }
+
+    private void drain() {
+        scheduled.set(false);
+        Runnable update;
+        while ((update = pending.poll()) != null) {
+            try {
+                update.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed pool of worker threads shared by several sessions, each submitting through its own {@link Lane}.
+ * <p>
+ * Lanes with pending tasks take turns: an idle worker runs the oldest task of the next lane in line, and the lane
+ * goes back to the end of the line if it still has tasks. A session that queues a large batch of comparisons thus
+ * delays the others by at most one task per lane, instead of making them wait for the whole batch.
+ */
+final class FairExecutor {
+    /**
+     * Tasks of a single session, in the order they were submitted.
+     */
+    final class Lane implements Executor {
+        final String name;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private final AtomicLong completed = new AtomicLong();
+
+        private Lane(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (lock) {
+                if (shutdown)
+                    throw new RejectedExecutionException("executor shut down");
+                tasks.add(task);
+                if (tasks.size() == 1) {
+                    ready.add(this);
+                    lock.notify();
+                }
+            }
+        }
+
+        int getPending() {
+            synchronized (lock) {
+                return tasks.size();
+            }
+        }
+
+        long getCompleted() {
+            return completed.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + getCompleted() + " tasks, " + getPending() + " pending";
+        }
+    }
+
+    private final Object lock = new Object();
+    // Lanes with pending tasks, in turn order.
+    private final ArrayDeque<Lane> ready = new ArrayDeque<>();
+    private final Thread[] workers;
+    private boolean shutdown;
+
+    FairExecutor(int threads, String prefix) {
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Thread(this::work, prefix + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    Lane lane(String name) {
+        return new Lane(name);
+    }
+
+    int getThreads() {
+        return workers.length;
+    }
+
+    /**
+     * Stops accepting tasks. The workers still run the ones already queued, whose callers may be waiting on them,
+     * and exit once there are none left.
+     */
+    void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Lane lane;
+            Runnable task;
+            synchronized (lock) {
+                while (ready.isEmpty() && !shutdown) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // Workers are never interrupted on purpose; the loop checks again.
+                    }
+                }
+                if (ready.isEmpty())
+                    return;
+                lane = ready.poll();
+                task = lane.tasks.poll();
+                if (!lane.tasks.isEmpty())
+                    ready.add(lane);
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                lane.completed.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the controller without any user interface: loads every curve of a template directory, then records the
+ * selected sensors in fixed windows, classifies each window against the templates and notifies the game whenever one
+ * of them matches.
+ * <p>
+ * Usage: {@code HeadlessController [--config file] [--option value]...}, where the options are the keys below. The
+ * configuration file is a properties file with the same keys; options given on the command line take precedence.
+ * <pre>
+ * host         address of the IMU host (required)
+ * sensors      comma separated sensor ids, or "all" for every sensor of the host (default: all)
+ * templates    directory with the reference curves, *.json or *.fgc (required)
+ * window       length of each recording, in seconds (default: 3)
+ * repetitions  number of recordings, or of repetitions when splitting, before exiting, 0 to run until killed
+ *              (default: 0)
+ * split        true to record continuously, splitting the samples streamed by the host into repetitions and
+ *              classifying each of them as it completes; hosts that don't stream samples are recorded in windows,
+ *              each treated as a whole exercise set (default: false)
+ * distance     point distance used to compare with the templates: chebyshev, chebyshev_canonical, dot or
+ *              geodesic (default: chebyshev)
+ * port         local uOS port (default: 8300)
+ * game         address of the game device (default: 0.0.0.0:8302)
+ * </pre>
+ * Nothing in here touches AWT, so it runs on machines without a display. {@link SessionManager} runs several of these
+ * sessions in one process.
+ */
+public class HeadlessController {
+    private static final String USAGE = "Usage: HeadlessController [--config file] [--host address] "
+            + "[--sensors id,...|all] [--templates dir] [--window seconds] [--repetitions n] [--split true|false] "
+            + "[--distance name] [--port n] [--game address]";
+
+    private final Properties config;
+    private final UosRuntime runtime = new UosRuntime();
+    private final TemplateLoader templateLoader = new TemplateLoader(Runtime.getRuntime().availableProcessors(),
+            new CurveCache(CurveCache.defaultDirectory()));
+    private final ExecutorService matching = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            Threads.daemon("classifier-"));
+    private final Session session;
+
+    HeadlessController(Properties config) {
+        this.config = config;
+        session = new Session("", new Session.Settings(config), runtime, templateLoader, matching,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        Properties config;
+        try {
+            config = parseArgs(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        Metrics.init();
+        final HeadlessController controller = new HeadlessController(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(controller::shutdown));
+        try {
+            controller.run();
+            System.exit(0);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    static Properties parseArgs(String[] args) throws IOException {
+        Properties defaults = new Properties();
+        defaults.setProperty("sensors", "all");
+        defaults.setProperty("window", "3");
+        defaults.setProperty("repetitions", "0");
+        defaults.setProperty("split", "false");
+        defaults.setProperty("distance", "chebyshev");
+        defaults.setProperty("port", Integer.toString(UosRuntime.DEFAULT_PORT));
+        defaults.setProperty("game", UosRuntime.DEFAULT_GAME_ADDRESS);
+
+        Properties config = new Properties(defaults);
+        Properties overrides = new Properties();
+        for (int i = 0; i < args.length; ++i) {
+            if (!args[i].startsWith("--") || (i + 1 == args.length))
+                throw new IllegalArgumentException("Invalid argument: " + args[i]);
+            String key = args[i].substring(2), value = args[++i];
+            if (key.equals("config")) {
+                try (InputStream in = Files.newInputStream(Paths.get(value))) {
+                    config.load(in);
+                }
+            } else
+                overrides.setProperty(key, value);
+        }
+        config.putAll(overrides);
+
+        new Session.Settings(config);
+        return config;
+    }
+
+    void run() throws Exception {
+        runtime.start(Integer.parseInt(config.getProperty("port")));
+        session.run();
+    }
+
+    void shutdown() {
+        session.shutdown();
+        matching.shutdownNow();
+        templateLoader.shutdown();
+        runtime.stop();
+        System.out.println(session);
+        System.out.print(Metrics.report());
+    }
+}
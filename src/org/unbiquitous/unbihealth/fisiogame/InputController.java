@@ -1,33 +1,24 @@
 package org.unbiquitous.unbihealth.fisiogame;
 
-import com.fastdtw.dtw.FastDTW;
-import com.fastdtw.dtw.TimeWarpInfo;
 import com.fastdtw.timeseries.TimeSeries;
-import com.fastdtw.timeseries.TimeSeriesBase;
-import com.fastdtw.util.DistanceFunction;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.math3.complex.Quaternion;
 import org.unbiquitous.unbihealth.imu.IMUDriver;
 import org.unbiquitous.unbihealth.imu.Sample;
-import org.unbiquitous.uos.core.UOS;
-import org.unbiquitous.uos.core.UOSLogging;
 import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
 import org.unbiquitous.uos.core.messageEngine.messages.Call;
-import org.unbiquitous.uos.core.messageEngine.messages.Notify;
-import org.unbiquitous.uos.core.messageEngine.messages.Response;
-import org.unbiquitous.uos.network.socket.TCPProperties;
-import org.unbiquitous.uos.network.socket.radar.MulticastRadar;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
@@ -55,43 +46,42 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.BiConsumer;
-import java.util.function.Predicate;
-import java.util.logging.Level;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 import java.util.regex.Pattern;
 
+import static org.unbiquitous.unbihealth.fisiogame.Curves.MATCH_THRESHOLD;
+
 /**
  * Shows a very simple interface to connect to an IMU driver and make service calls and process input for Fisiogame.
  *
  * @author Luciano Santos
  */
 public class InputController extends JFrame {
-    private static UOSThread uosThread;
-
-    private static UOS uos;
-    private static UpDevice fisiogameDevice;
-
-    static {
-        UOSLogging.setLevel(Level.ALL);
-    }
-
     public static void main(String args[]) throws Exception {
+        Metrics.init();
+        final UosRuntime runtime = new UosRuntime(UosRuntime.DEFAULT_GAME_ADDRESS);
         UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         SwingUtilities.invokeLater(() -> {
-            InputController controller = new InputController();
+            InputController controller = new InputController(runtime);
             controller.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
             controller.setMinimumSize(new Dimension(600, 600));
             controller.setSize(new Dimension(1024, 768));
@@ -99,26 +89,99 @@ public class InputController extends JFrame {
             controller.addWindowListener(new WindowAdapter() {
                 @Override
                 public void windowClosing(WindowEvent e) {
-                    uosThread.stop();
+                    runtime.stop();
+                    controller.classifier.shutdown();
+                    controller.templateLoader.shutdown();
+                    controller.compute.shutdown();
+                    controller.io.shutdown();
+                    controller.live.shutdown();
                     System.exit(0);
                 }
             });
             controller.setVisible(true);
         });
-        uos = new UOS();
-        TCPProperties props = new MulticastRadar.Properties();
-        props.setPort(8300);
-        props.setPassivePortRange(8301, 8310);
-        props.put("ubiquitos.multicast.beaconFrequencyInSeconds", 10);
-        uos.start(props);
-        fisiogameDevice = new UpDevice("fisiogame").addNetworkInterface("0.0.0.0:8302", "Ethernet:TCP");
-        (new Thread(uosThread = new UOSThread())).start();
+        runtime.start(UosRuntime.DEFAULT_PORT);
     }
 
+    private final UosRuntime runtime;
+
     private Map<String, TimeSeries> curvesMap = new HashMap<>();
 
-    public InputController() {
+    /**
+     * Point distance used to compare with each loaded curve.
+     */
+    private final Map<String, QuaternionDistance> kernels = new HashMap<>();
+
+    private static final QuaternionDistance DEFAULT_DISTANCE =
+            QuaternionDistance.of(System.getProperty("fisiogame.distance", "chebyshev"));
+
+    /**
+     * Matches live samples against every loaded curve, only to log the matches; the punches are sent as the
+     * {@link #repetitionStream} classifies each repetition. Only accessed from the {@link #live} thread, where it is
+     * replaced, between two samples, whenever the curves or their distances change.
+     */
+    private StreamingMatcher liveMatcher = newLiveMatcher();
+
+    /**
+     * Whether samples are streamed from the host while recording, to be matched as they arrive. Off unless asked
+     * for, as it relies on the host sending sample events, which not every IMU driver does; recordings are retrieved
+     * in bulk either way.
+     */
+    private static final boolean STREAM = Boolean.getBoolean("fisiogame.stream");
+
+    /**
+     * Samples of the current recording, while it lasts.
+     */
+    private SampleStream stream;
+
+    /**
+     * Splits {@link #stream} into repetitions as they complete, classifying each one into
+     * {@link #streamedRepetitions}, which is only accessed from the {@link #compute} thread.
+     */
+    private RepetitionStream repetitionStream;
+    private Map<RepetitionSegmenter.Repetition, Classifier.Match> streamedRepetitions;
+
+    /**
+     * Index of {@link #curvesMap}, only accessed from the {@link #compute} thread, where it is rebuilt whenever the
+     * curves change.
+     */
+    private TemplateIndex index = new TemplateIndex(Collections.<String, TimeSeries>emptyMap());
+
+    /**
+     * Number of best matches listed when classifying.
+     */
+    private static final int CLASSIFY_RESULTS = 5;
+
+    private final DtwCascade cascade = new DtwCascade(MATCH_THRESHOLD,
+            DtwCascade.Engine.valueOf(System.getProperty("fisiogame.dtw", "fastdtw").toUpperCase()));
+    private RecordingSession session;
+
+    private final TemplateLoader templateLoader = new TemplateLoader(Runtime.getRuntime().availableProcessors(),
+            new CurveCache(CurveCache.defaultDirectory()));
+
+    private final Classifier classifier = new Classifier(Runtime.getRuntime().availableProcessors(), cascade);
+
+    /**
+     * Matching and serialization of retrieved curves, kept off the event dispatch thread.
+     */
+    private final ExecutorService compute = Executors.newSingleThreadExecutor(Threads.daemon("compute-"));
+
+    /**
+     * File writes, in the order they were requested.
+     */
+    private final ExecutorService io = Executors.newSingleThreadExecutor(Threads.daemon("io-"));
+
+    /**
+     * Live matching of streamed samples, kept apart from {@link #compute} so a classification doesn't hold it up.
+     */
+    private final ExecutorService live = Executors.newSingleThreadExecutor(Threads.daemon("live-"));
+
+    private final EdtQueue edt = new EdtQueue();
+    private final AtomicInteger busyTasks = new AtomicInteger();
+
+    InputController(UosRuntime runtime) {
         super("Fisiogame Input Controller");
+        this.runtime = runtime;
 
         initialize();
 
@@ -129,6 +192,7 @@ public class InputController extends JFrame {
     private JTextField txtIP;
     private JButton btnTest;
     private JComboBox<String> cboSensorIds;
+    private JCheckBox chkAllSensors;
     private JLabel lblIPTestResult;
     private JTextArea txtLog;
     private JTextField txtFilePath;
@@ -138,10 +202,17 @@ public class InputController extends JFrame {
     private JList<String> lstCurves;
     private DefaultListModel<String> lstModel;
     private JButton btnRemove;
+    private JComboBox<QuaternionDistance> cboDistance;
     private JButton btnStartRecording;
     private JButton btnStopRecording;
     private JLabel lblRecordId;
+    private JProgressBar prgBusy;
     private JButton btnMatch;
+    private JButton btnClassify;
+    private JButton btnRepetitions;
+    private JDialog metricsDialog;
+    private JDialog plotDialog;
+    private final CurvePlot plot = new CurvePlot();
 
     private void initialize() {
         setLayout(new GridBagLayout());
@@ -216,6 +287,12 @@ public class InputController extends JFrame {
         ipGbc.weightx = 1.0;
         ipPane.add(cboSensorIds, ipGbc);
 
+        chkAllSensors = new JCheckBox("All sensors");
+        chkAllSensors.setToolTipText("Record every sensor of the host at once and match them as a single curve.");
+        ipGbc.gridx++;
+        ipGbc.weightx = 0.0;
+        ipPane.add(chkAllSensors, ipGbc);
+
         lblIPTestResult = new JLabel(" ");
         ipGbc.gridx++;
         ipGbc.weightx = 0.2;
@@ -274,6 +351,9 @@ public class InputController extends JFrame {
             public void valueChanged(ListSelectionEvent e) {
                 boolean selected = lstCurves.getSelectedIndex() >= 0;
                 btnRemove.setEnabled(selected);
+                cboDistance.setEnabled(selected);
+                if (selected)
+                    cboDistance.setSelectedItem(kernels.get(lstCurves.getSelectedValue()));
                 btnMatch.setEnabled(btnStopRecording.isEnabled() && selected);
             }
         });
@@ -320,6 +400,53 @@ public class InputController extends JFrame {
             }
         });
         recordButtonsPane.add(btnMatch);
+        btnClassify = new JButton("CLASSIFY");
+        btnClassify.setEnabled(false);
+        btnClassify.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                classify();
+            }
+        });
+        recordButtonsPane.add(btnClassify);
+        btnRepetitions = new JButton("REPS");
+        btnRepetitions.setToolTipText("Split the recording into repetitions and classify each of them.");
+        btnRepetitions.setEnabled(false);
+        btnRepetitions.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                classifyRepetitions();
+            }
+        });
+        recordButtonsPane.add(btnRepetitions);
+        JButton btnMetrics = new JButton("Metrics");
+        btnMetrics.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showMetrics();
+            }
+        });
+        recordButtonsPane.add(btnMetrics);
+        JButton btnPlot = new JButton("Plot");
+        btnPlot.setToolTipText("Plot the live or last matched curve.");
+        btnPlot.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showPlot();
+            }
+        });
+        recordButtonsPane.add(btnPlot);
+        cboDistance = new JComboBox<>(QuaternionDistance.values());
+        cboDistance.setToolTipText("Distance used to compare with the selected curve.");
+        cboDistance.setSelectedItem(DEFAULT_DISTANCE);
+        cboDistance.setEnabled(false);
+        cboDistance.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                cboDistanceActionPerformed();
+            }
+        });
+        recordButtonsPane.add(cboDistance);
         curvesGbc.gridx = 0;
         curvesGbc.gridy++;
         curvesGbc.gridwidth = 3;
@@ -345,12 +472,21 @@ public class InputController extends JFrame {
         lblRecordId = new JLabel();
         curvesGbc.gridx = 0;
         curvesGbc.gridy++;
-        curvesGbc.gridwidth = 4;
+        curvesGbc.gridwidth = 3;
         curvesGbc.weightx = 1.0;
         curvesGbc.weighty = 0.0;
         curvesGbc.insets = new Insets(5, 5, 5, 5);
         curvesPane.add(lblRecordId, curvesGbc);
 
+        prgBusy = new JProgressBar();
+        prgBusy.setIndeterminate(true);
+        prgBusy.setVisible(false);
+        curvesGbc.gridx = 3;
+        curvesGbc.gridwidth = 1;
+        curvesGbc.weightx = 0.0;
+        curvesGbc.insets = new Insets(5, 0, 5, 5);
+        curvesPane.add(prgBusy, curvesGbc);
+
         gbc.gridy++;
         gbc.weighty = 1.0;
         gbc.insets = new Insets(5, 5, 0, 5);
@@ -366,6 +502,28 @@ public class InputController extends JFrame {
         add(logPane, gbc);
     }
 
+    private void showMetrics() {
+        if (metricsDialog == null) {
+            metricsDialog = new JDialog(this, "Metrics");
+            metricsDialog.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+            metricsDialog.add(new MetricsPanel());
+            metricsDialog.setSize(new Dimension(700, 400));
+            metricsDialog.setLocationRelativeTo(this);
+        }
+        metricsDialog.setVisible(true);
+    }
+
+    private void showPlot() {
+        if (plotDialog == null) {
+            plotDialog = new JDialog(this, "Plot");
+            plotDialog.setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+            plotDialog.add(plot);
+            plotDialog.pack();
+            plotDialog.setLocationRelativeTo(this);
+        }
+        plotDialog.setVisible(true);
+    }
+
     private void txtIPChanged() {
         final Pattern HOST_NAME = Pattern.compile(
                 "^(([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])\\.){3}([0-9]|[1-9][0-9]|1[0-9]{2}|2[0-4][0-9]|25[0-5])(\\:[0-9]{1,5})?$");
@@ -395,8 +553,21 @@ public class InputController extends JFrame {
         }
     };
 
+    private static final FileFilter CURVE_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            String name = f.getName().toLowerCase();
+            return f.isDirectory() || name.endsWith(".json") || name.endsWith(CurveFile.EXTENSION);
+        }
+
+        @Override
+        public String getDescription() {
+            return "Curve files (*.json, *" + CurveFile.EXTENSION + ")";
+        }
+    };
+
     private void btnBrowseActionPerformed() {
-        if (showFileDialog(DialogType.OPEN, JSON_FILTER, true) == JOptionPane.OK_OPTION) {
+        if (showFileDialog(DialogType.OPEN, CURVE_FILTER, true) == JOptionPane.OK_OPTION) {
             StringBuffer paths = new StringBuffer();
             for (File f : fileChooser.getSelectedFiles()) {
                 paths.append(f.getAbsolutePath());
@@ -408,30 +579,44 @@ public class InputController extends JFrame {
 
     private void btnLoadActionPerformed() {
         log(null);
-        String[] paths = txtFilePath.getText().split(";");
+        List<String> paths = new ArrayList<>();
+        for (String p : txtFilePath.getText().split(";")) {
+            String path = p.trim();
+            if (!path.isEmpty())
+                paths.add(path);
+        }
+        if (paths.isEmpty())
+            return;
+
+        btnLoad.setEnabled(false);
+        track(templateLoader.load(paths)).thenAcceptAsync(this::onTemplatesLoaded, edt);
+    }
+
+    private void onTemplatesLoaded(TemplateLoader.Result result) {
         StringWriter sw = new StringWriter();
         PrintWriter out = new PrintWriter(sw);
-        String path;
-        for (String p : paths) {
-            if ((path = p.trim()).isEmpty())
-                continue;
-            try {
-                String json = new String(Files.readAllBytes(Paths.get(path)), Charset.forName("UTF-8"));
-                curvesMap.put(path, processCurve(IMUDriver.extractRecordedData(json)));
-            } catch (IOException e) {
-                out.println("Failed to load file '" + path + "':");
-                e.printStackTrace(out);
-            }
+        for (Map.Entry<String, Throwable> e : result.failures.entrySet()) {
+            out.println("Failed to load file '" + e.getKey() + "':");
+            e.getValue().printStackTrace(out);
         }
         String errors = sw.toString();
         if (!errors.isEmpty())
             log(errors);
+        curvesMap.putAll(result.curves);
+        for (String p : result.curves.keySet())
+            if (!kernels.containsKey(p))
+                kernels.put(p, DEFAULT_DISTANCE);
 
         lstModel.clear();
         for (String p : curvesMap.keySet())
             lstModel.addElement(p);
+        resetLiveMatcher();
+        rebuildIndex();
+        btnClassify.setEnabled(btnStopRecording.isEnabled() && !curvesMap.isEmpty());
+        btnRepetitions.setEnabled(btnClassify.isEnabled());
 
         txtFilePath.setText("");
+        btnLoad.setEnabled(true);
     }
 
     private void btnRemoveActionPerformed() {
@@ -440,204 +625,379 @@ public class InputController extends JFrame {
         lstModel.remove(index);
         lstCurves.setSelectedIndex(-1);
         curvesMap.remove(path);
+        kernels.remove(path);
+        resetLiveMatcher();
+        rebuildIndex();
+        btnClassify.setEnabled(btnStopRecording.isEnabled() && !curvesMap.isEmpty());
+        btnRepetitions.setEnabled(btnClassify.isEnabled());
+    }
+
+    private void cboDistanceActionPerformed() {
+        String path = lstCurves.getSelectedValue();
+        QuaternionDistance kernel = (QuaternionDistance) cboDistance.getSelectedItem();
+        if ((path == null) || (kernels.put(path, kernel) == kernel))
+            return;
+        resetLiveMatcher();
+        rebuildIndex();
+    }
+
+    private void rebuildIndex() {
+        final Map<String, TimeSeries> templates = new HashMap<>(curvesMap);
+        final Map<String, QuaternionDistance> distances = new HashMap<>(kernels);
+        runInBackground(compute, () -> index = new TemplateIndex(templates, distances));
+    }
+
+    private StreamingMatcher newLiveMatcher() {
+        return new StreamingMatcher(curvesMap, kernels, MATCH_THRESHOLD, (curveId, distance, startTime, endTime) ->
+                log("Live match with '" + curveId + "': " + distance));
+    }
+
+    /**
+     * Replaces {@link #liveMatcher} with a new one for the current curves, built here but swapped in on the
+     * {@link #live} thread, so a sample is never matched halfway through the change.
+     */
+    private void resetLiveMatcher() {
+        final StreamingMatcher matcher = newLiveMatcher();
+        live.execute(() -> liveMatcher = matcher);
     }
 
     private void testIP() {
         log(null);
         btnTest.setEnabled(false);
         clearSensorIds();
+        final String ip = txtIP.getText().trim();
         Call call = new Call(IMUDriver.DRIVER_NAME, IMUDriver.LIST_IDS_NAME);
-        uosThread.callService(getDevice(), call, (resp, errMsg) -> {
-            boolean sucess = false;
+        track(runtime.callService(getDevice(), call, (resp, errMsg) -> {
+            List<String> ids = null;
             if (errMsg != null)
                 log(errMsg);
             else {
                 try {
-                    List<String> ids = IMUDriver.extractIdList(resp);
-                    for (String id : ids)
-                        cboSensorIds.addItem(id);
-                    saveLastIP(txtIP.getText().trim());
-                    sucess = true;
+                    ids = IMUDriver.extractIdList(resp);
+                    saveLastIP(ip);
                 } catch (Throwable t) {
                     log(toString(t));
                 }
             }
-            lblIPTestResult.setForeground(sucess ? DARK_GREEN : Color.red);
-            lblIPTestResult.setText(sucess ? "success!" : "fail!");
-            btnTest.setEnabled(true);
-        });
+            final List<String> found = ids;
+            edt.execute(() -> {
+                boolean sucess = found != null;
+                if (sucess) {
+                    for (String id : found)
+                        cboSensorIds.addItem(id);
+                }
+                lblIPTestResult.setForeground(sucess ? DARK_GREEN : Color.red);
+                lblIPTestResult.setText(sucess ? "success!" : "fail!");
+                btnTest.setEnabled(true);
+            });
+        }));
     }
 
     private void startRecording() {
         log(null);
         btnStartRecording.setEnabled(false);
-        Call call = new Call(IMUDriver.DRIVER_NAME, IMUDriver.TARE_NAME);
-        uosThread.callService(getDevice(), call, (resp, errMsg) -> {
-            if (errMsg != null)
-                log(errMsg);
-            else
-                onTared();
-        });
+        List<String> ids = new ArrayList<>();
+        if (chkAllSensors.isSelected()) {
+            for (int i = 0; i < cboSensorIds.getItemCount(); ++i)
+                ids.add(cboSensorIds.getItemAt(i));
+        } else
+            ids.add((String) cboSensorIds.getSelectedItem());
+        final RecordingSession s = new RecordingSession(runtime::callService, getDevice(), ids);
+        track(s.start()).whenCompleteAsync((v, t) -> {
+            if (t != null)
+                log(errorMessage(t));
+            onTared(s, t == null);
+        }, edt);
     }
 
-    private void onTared() {
-        Call call = new Call(IMUDriver.DRIVER_NAME, IMUDriver.START_RECORD_NAME);
-        call.addParameter(IMUDriver.SENSOR_ID_PARAM_NAME, cboSensorIds.getSelectedItem());
-        uosThread.callService(getDevice(), call, (resp, errMsg) -> {
-            String recordId = null;
-            if (errMsg != null)
-                log(errMsg);
-            else
-                recordId = resp.getResponseString(IMUDriver.RECORD_ID_PARAM_NAME);
-
-            boolean success = recordId != null;
-            btnStopRecording.setEnabled(success);
-            btnMatch.setEnabled(success && (lstCurves.getSelectedIndex() >= 0));
-            btnStartRecording.setEnabled(!success);
-            lblRecordId.setText(recordId);
-        });
+    private void onTared(RecordingSession s, boolean success) {
+        session = success ? s : null;
+        if (success) {
+            resetLiveMatcher();
+            plot.start();
+            if (STREAM)
+                startStream(s);
+        }
+        btnStopRecording.setEnabled(success);
+        btnMatch.setEnabled(success && (lstCurves.getSelectedIndex() >= 0));
+        btnClassify.setEnabled(success && !curvesMap.isEmpty());
+        btnRepetitions.setEnabled(btnClassify.isEnabled());
+        btnStartRecording.setEnabled(!success);
+        lblRecordId.setText(success ? String.join(", ", s.getRecordIds().values()) : null);
     }
 
+    /**
+     * Streams the first sensor of the session to {@link #liveMatcher} and the {@link #plot}, and every sensor to a
+     * {@link RepetitionStream}, which sends a punch for each repetition as soon as it is classified as a match, so
+     * they're already classified if asked for when the recording stops. Hosts that don't send sample events simply
+     * leave it idle, as the recording is still retrieved in bulk.
+     */
+    private void startStream(RecordingSession s) {
+        final SampleStream st = new SampleStream(live, SampleRing.DEFAULT_CAPACITY);
+        st.subscribe(s.getSensorIds().get(0), Resampler.CONFIGURED.stream((timestamp, w, x, y, z) ->
+                liveMatcher.accept(timestamp, w, x, y, z)));
+        st.subscribe(s.getSensorIds().get(0), plot);
+        final Map<RepetitionSegmenter.Repetition, Classifier.Match> results = new LinkedHashMap<>();
+        repetitionStream = new RepetitionStream(st, s.getSensorIds(), curvesMap, kernels, MATCH_THRESHOLD,
+                RepetitionSegmenter.DEFAULT_REST_MILLIS, (r, curve) -> runInBackground(compute, () -> {
+            List<Classifier.Match> matches = classifier.classify(curve, index, 1);
+            results.put(r, matches.isEmpty() ? null : matches.get(0));
+            if (!matches.isEmpty() && (matches.get(0).distance < MATCH_THRESHOLD))
+                runtime.sendPunch(matches.get(0).distance);
+        }));
+        streamedRepetitions = results;
+        stream = st;
+        final UpDevice device = getDevice();
+        runInBackground(io, () -> st.start(runtime, device));
+    }
+
+    /**
+     * Stops streaming and completes, once every repetition streamed is classified or queued to be, with their
+     * results, or {@code null} if no samples were streamed.
+     */
+    private CompletableFuture<Map<RepetitionSegmenter.Repetition, Classifier.Match>> stopStream() {
+        final SampleStream st = stream;
+        final RepetitionStream reps = repetitionStream;
+        final Map<RepetitionSegmenter.Repetition, Classifier.Match> results = streamedRepetitions;
+        stream = null;
+        repetitionStream = null;
+        streamedRepetitions = null;
+        if (st == null)
+            return CompletableFuture.completedFuture(null);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                st.stop(runtime);
+            } catch (Exception e) {
+                log(toString(e));
+            }
+            // Events, samples and parse times are counted as they come.
+            Metrics.count("stream.dropped", st.getDropped());
+        }, io).thenApplyAsync((v) -> {
+            // Queued on the live thread after the samples already received.
+            reps.finish();
+            return (st.getEvents() == 0) ? null : results;
+        }, live);
+    }
+
+    private enum RetrieveMode {SAVE, MATCH, CLASSIFY, REPETITIONS}
+
     private void stopRecording() {
-        retrieveCurve(null);
+        retrieveCurve(RetrieveMode.SAVE, null);
     }
 
     private void match() {
-        retrieveCurve(lstModel.elementAt(lstCurves.getSelectedIndex()));
+        retrieveCurve(RetrieveMode.MATCH, lstModel.elementAt(lstCurves.getSelectedIndex()));
     }
 
-    private void retrieveCurve(final String refCurveId) {
+    private void classify() {
+        retrieveCurve(RetrieveMode.CLASSIFY, null);
+    }
+
+    private void classifyRepetitions() {
+        retrieveCurve(RetrieveMode.REPETITIONS, null);
+    }
+
+    private void retrieveCurve(final RetrieveMode mode, final String refCurveId) {
         log(null);
         btnStopRecording.setEnabled(false);
         btnMatch.setEnabled(false);
-        Call call = new Call(IMUDriver.DRIVER_NAME, IMUDriver.STOP_RECORD_NAME);
-        call.addParameter(IMUDriver.SENSOR_ID_PARAM_NAME, cboSensorIds.getSelectedItem());
-        call.addParameter(IMUDriver.RECORD_ID_PARAM_NAME, lblRecordId.getText());
-        uosThread.callService(getDevice(), call, (resp, errMsg) -> {
+        btnClassify.setEnabled(false);
+        btnRepetitions.setEnabled(false);
+        RecordingSession s = session;
+        session = null;
+        final CompletableFuture<Map<RepetitionSegmenter.Repetition, Classifier.Match>> streamed = stopStream();
+        // The worker threads only see these snapshots, never the maps the UI keeps changing.
+        final Map<String, TimeSeries> templates = new HashMap<>(curvesMap);
+        final Map<String, QuaternionDistance> distances = new HashMap<>(kernels);
+        track(s.stop()).whenCompleteAsync((recordings, t) -> {
             btnStartRecording.setEnabled(true);
             lblRecordId.setText(null);
 
-            if (errMsg != null)
-                log(errMsg);
-            else {
-                try {
-                    onCurveRetrieved(IMUDriver.extractRecordedData(resp), refCurveId);
-                } catch (Throwable t) {
-                    log(toString(t));
-                }
+            if (t != null)
+                log(errorMessage(t));
+            else if (mode == RetrieveMode.SAVE) {
+                // Written to a temporary directory while the user picks the file, then moved there.
+                final CompletableFuture<RecordingWriter> saved = track(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return saveRecordings(recordings);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, io));
+                if (showFileDialog(DialogType.SAVE, JSON_FILTER, false) == JOptionPane.OK_OPTION) {
+                    final File file = fileChooser.getSelectedFile();
+                    runInBackground(io, () -> moveRecordings(saved.join(), file));
+                } else
+                    runInBackground(io, () -> moveRecordings(saved.join(), null));
+            } else
+                // Only once the streamed repetitions are queued for classification ahead of it.
+                streamed.whenComplete((repetitions, st) -> runInBackground(compute,
+                        () -> onCurveRetrieved(recordings, mode, refCurveId, templates, distances, repetitions)));
+        }, edt);
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private void runInBackground(Executor executor, final Task task) {
+        track(CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log(toString(t));
             }
-        });
+        }, executor));
     }
 
-    private static final DistanceFunction WORST_DIST = new DistanceFunction() {
-        @Override
-        public double calcDistance(double[] v1, double[] v2) {
-            if (v1.length != v2.length)
-                throw new RuntimeException("vectors sizes don't match");
-            double max = Double.MIN_VALUE;
-            for (int i = 0; i < v1.length; ++i)
-                max = Math.max(max, Math.abs(v1[i] - v2[i]));
-            return max;
-        }
-    };
+    /**
+     * Shows the progress bar for as long as the given task is running.
+     */
+    private <T> CompletableFuture<T> track(CompletableFuture<T> task) {
+        busyTasks.incrementAndGet();
+        edt.execute(this::updateProgress);
+        task.whenComplete((r, t) -> {
+            busyTasks.decrementAndGet();
+            edt.execute(this::updateProgress);
+        });
+        return task;
+    }
 
-    private void onCurveRetrieved(List<Sample> samples, String refCurveId) throws IOException {
-        TimeSeries ts = processCurve(samples);
-        if (refCurveId != null) {
-            TimeSeries base = curvesMap.get(refCurveId);
-            TimeWarpInfo info = FastDTW.compare(base, ts, WORST_DIST);
-            log(info.toString());
+    private void updateProgress() {
+        prgBusy.setVisible(busyTasks.get() > 0);
+    }
 
+    private void onCurveRetrieved(Map<String, List<Sample>> recordings, RetrieveMode mode, String refCurveId,
+                                  Map<String, TimeSeries> templates, Map<String, QuaternionDistance> kernels,
+                                  Map<RepetitionSegmenter.Repetition, Classifier.Match> repetitions)
+            throws InterruptedException {
+        switch (mode) {
+            case MATCH: {
+                TimeSeries ts = Curves.fuse(new ArrayList<>(recordings.values()));
+                TimeSeries base = templates.get(refCurveId);
+                long start = System.nanoTime();
+                double distance = cascade.distance(base, DtwCascade.bounds(ts), index.kernel(refCurveId));
+                Metrics.record("dtw", refCurveId, start);
+                if (distance < MATCH_THRESHOLD)
+                    runtime.sendPunch(distance);
+                plotAlignment(ts, base, index.kernel(refCurveId));
+                log((Double.isInfinite(distance) ? "pruned" : "distance: " + distance) + "\n" + cascade + "\n"
+                        + runtime.getNotifies());
+                break;
+            }
 
-            double distance = info.getDistance();
-            if (distance < 20) {
+            case CLASSIFY: {
+                TimeSeries ts = Curves.fuse(new ArrayList<>(recordings.values()));
+                List<Classifier.Match> matches = classifier.classify(ts, index, CLASSIFY_RESULTS);
+                StringBuilder sb = new StringBuilder();
+                for (Classifier.Match m : matches)
+                    sb.append(m).append('\n');
+                sb.append("compared ").append(classifier.getLastCompared()).append(" of ").append(index.size())
+                        .append(" templates\n");
+                if (!matches.isEmpty() && (matches.get(0).distance < MATCH_THRESHOLD))
+                    runtime.sendPunch(matches.get(0).distance);
+                if (!matches.isEmpty()) {
+                    String best = matches.get(0).curveId;
+                    plotAlignment(ts, templates.get(best), index.kernel(best));
+                }
+                sb.append(cascade).append('\n').append(runtime.getNotifies());
+                log(sb.toString());
+                break;
+            }
 
-                Notify n = new Notify("update", "unbihealth.PinDriver");
-                n.setEventKey("update");
-                n.addParameter("pin", "punch");
-                n.addParameter("value", (float)(1- distance / 20));
-                try {
-                    System.out.println("Sending Notify");
-                    uos.getGateway().notify(n, fisiogameDevice);
+            case REPETITIONS: {
+                // Classified, and punches sent, as they completed, unless the host didn't stream its samples.
+                boolean streamed = repetitions != null;
+                if (!streamed) {
+                    repetitions = new LinkedHashMap<>();
+                    for (Map.Entry<RepetitionSegmenter.Repetition, TimeSeries> e : RepetitionSegmenter.curves(
+                            recordings, templates, kernels, MATCH_THRESHOLD,
+                            RepetitionSegmenter.DEFAULT_REST_MILLIS).entrySet()) {
+                        List<Classifier.Match> matches = classifier.classify(e.getValue(), index, 1);
+                        repetitions.put(e.getKey(), matches.isEmpty() ? null : matches.get(0));
+                    }
                 }
-                catch (Exception e) {
-                    System.out.println(e.getClass());
-                    System.out.println(e.getMessage());
-                    e.printStackTrace();
+                StringBuilder sb = new StringBuilder();
+                sb.append(repetitions.size()).append(" repetitions\n");
+                int matched = 0;
+                for (Map.Entry<RepetitionSegmenter.Repetition, Classifier.Match> e : repetitions.entrySet()) {
+                    Classifier.Match m = e.getValue();
+                    sb.append(e.getKey()).append(" -> ").append((m == null) ? "no match" : m.toString()).append('\n');
+                    if ((m != null) && (m.distance < MATCH_THRESHOLD)) {
+                        if (!streamed)
+                            runtime.sendPunch(m.distance);
+                        ++matched;
+                    }
                 }
+                sb.append(matched).append(" matched\n").append(cascade).append('\n').append(runtime.getNotifies());
+                log(sb.toString());
+                break;
             }
-        } else if (showFileDialog(DialogType.SAVE, JSON_FILTER, false) == JOptionPane.OK_OPTION) {
-            final ObjectMapper mapper = new ObjectMapper();
-            mapper.writerWithDefaultPrettyPrinter().writeValue(fileChooser.getSelectedFile(), samples);
-            saveCSV(fileChooser.getSelectedFile().getAbsolutePath() + ".csv", samples);
-            saveCSV(fileChooser.getSelectedFile().getAbsolutePath() + "-trimmed.csv", ts);
+
+            default:
+                break;
         }
     }
 
-    private static final double CURVE_THRESHOLD = 0.025;
-
-    private TimeSeries processCurve(List<Sample> list) {
-        Sample[] samples = new Sample[list.size()];
-        list.toArray(samples);
-
-        // Using the threshold, verifies the trim points for the array...
-        final Predicate<double[]> lowerThanThreshold = (s) -> {
-            return Arrays.stream(s).map(Math::abs).max().getAsDouble() <= CURVE_THRESHOLD;
-        };
-        int first = 0, last = samples.length - 1;
-        Quaternion qf = samples[first].getQuaternion(), ql = samples[last].getQuaternion();
-        while ((first < last) && lowerThanThreshold.test(relativeTo(samples[first].getQuaternion(), qf)))
-            ++first;
-        while ((last > first) && lowerThanThreshold.test(relativeTo(samples[last].getQuaternion(), ql)))
-            --last;
-
-        // Generates the series.
-        TimeSeriesBase.Builder builder = TimeSeriesBase.builder();
-        long baseTime = samples[first].getTimestamp();
-        for (int k = first; k <= last; ++k)
-            builder.add(samples[k].getTimestamp() - baseTime, relativeTo(samples[k].getQuaternion(), qf));
-        return builder.build();
+    /**
+     * Shows a curve against the reference it was compared with; their alignment is computed by the plot, if shown.
+     */
+    private void plotAlignment(TimeSeries curve, TimeSeries reference, QuaternionDistance kernel) {
+        plot.show(Curve.split(curve), Curve.split(reference), kernel);
     }
 
-    private static double[] relativeTo(Quaternion q, Quaternion base) {
-        return new double[]{
-                q.getQ0() - base.getQ0(),
-                q.getQ1() - base.getQ1(),
-                q.getQ2() - base.getQ2(),
-                q.getQ3() - base.getQ3()
-        };
+    private static RecordingWriter saveRecordings(Map<String, List<Sample>> recordings) throws IOException {
+        Path dir = Files.createTempDirectory("fisiogame-");
+        try {
+            return RecordingWriter.write(dir.resolve("recording.json"), recordings, RecordingWriter.COMPRESS);
+        } catch (IOException | RuntimeException e) {
+            try {
+                deleteDirectory(dir);
+            } catch (IOException cleanup) {
+                e.addSuppressed(cleanup);
+            }
+            throw e;
+        }
     }
 
-    private void saveCSV(String path, List<Sample> curve) {
-        log(null);
-        try (FileWriter fw = new FileWriter(path)) {
-            fw.write("t;s;x;y;z\n");
-            Sample base = curve.get(0);
-            for (Sample s : curve) {
-                long t = s.getTimestamp() - base.getTimestamp();
-                double[] d = relativeTo(s.getQuaternion(), base.getQuaternion());
-                fw.write(String.format("%d;%2.12f;%2.12f;%2.12f;%2.12f\n", t, d[0], d[1], d[2], d[3]));
-            }
-        } catch (Throwable t) {
-            log(toString(t));
+    /**
+     * Moves saved recordings from their temporary directory to {@code file}, or discards them if it's {@code null}.
+     */
+    private static void moveRecordings(RecordingWriter saved, File file) throws IOException {
+        Path dir = saved.getFiles().get(0).getParent();
+        try {
+            if (file != null)
+                saved.moveTo(file.toPath().toAbsolutePath());
+        } finally {
+            deleteDirectory(dir);
         }
     }
 
-    private void saveCSV(String path, TimeSeries curve) {
-        log(null);
-        try (FileWriter fw = new FileWriter(path)) {
-            fw.write("t;s;x;y;z\n");
-            for (int i = 0; i < curve.size(); ++i) {
-                long t = (long) curve.getTimeAtNthPoint(i);
-                double[] d = curve.getMeasurementVector(i);
-                fw.write(String.format("%d;%2.12f;%2.12f;%2.12f;%2.12f\n", t, d[0], d[1], d[2], d[3]));
-            }
-        } catch (Throwable t) {
-            log(toString(t));
+    /**
+     * Deletes a directory along with any files left in it.
+     */
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (DirectoryStream<Path> left = Files.newDirectoryStream(dir)) {
+            for (Path f : left)
+                Files.delete(f);
         }
+        Files.delete(dir);
+    }
+
+    private static String errorMessage(Throwable t) {
+        if ((t instanceof CompletionException) && (t.getCause() != null))
+            t = t.getCause();
+        return (t instanceof IllegalStateException) ? t.getMessage() : toString(t);
     }
 
+    /**
+     * Replaces the log contents; may be called from any thread.
+     */
     private void log(String msg) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            edt.execute(() -> txtLog.setText(msg));
+            return;
+        }
         txtLog.setText(msg);
     }
 
@@ -712,40 +1072,4 @@ public class InputController extends JFrame {
             throw new RuntimeException("Couldn't load internal font.", e);
         }
     }
-
-    private static class UOSThread implements Runnable {
-        private volatile boolean started = false;
-
-        @Override
-        public void run() {
-            if (started)
-                throw new RuntimeException("UOS instance alread running.");
-            started = true;
-        }
-
-        public void stop() {
-            if (!started)
-                return;
-
-            try {
-                uos.stop();
-            } catch (Throwable e) {
-                e.printStackTrace();
-            }
-            started = false;
-        }
-
-        public void callService(UpDevice device, Call call, BiConsumer<Response, String> callback) {
-            if (!started)
-                callback.accept(null, "UOS not started yet.");
-            new Thread(() -> {
-                try {
-                    Response r = uos.getGateway().callService(device, call);
-                    callback.accept(r, r.getError());
-                } catch (Exception e) {
-                    callback.accept(null, InputController.toString(e));
-                }
-            }).start();
-        }
-    }
 }
@@ -0,0 +1,203 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters and latency histograms of the processing stages.
+ * <p>
+ * Latencies are recorded by stage and, where it makes sense, also by sensor or template as {@code stage[key]}, for up
+ * to {@code fisiogame.metrics.keys} keys per stage (64 by default); further keys only count towards the stage and
+ * the {@code metrics.overflow} counter. Keyed counters are bounded the same way.
+ * <pre>
+ * service.call      service call through the executor, including the time waiting for a thread
+ * service.rtt       round trip of the IMU service calls, by sensor
+ * json.extract      parsing of the recorded samples out of a response, by sensor
+ * stream.parse      parsing of a chunk of streamed samples, by sensor
+ * trim              trimming (and fusing) a recording into a curve
+ * template.load     loading and processing a template file, when not cached
+ * dtw               comparison against a template, including the lower bounds; by template when matching one
+ * notify.send       sending a notify to the game
+ * notify.latency    time from queueing a notify until it was sent
+ * </pre>
+ * If the {@code fisiogame.metrics} system property names a file, a report is written to it every
+ * {@code fisiogame.metrics.period} seconds (10 by default).
+ */
+final class Metrics {
+    private static final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final int MAX_KEYS = Integer.getInteger("fisiogame.metrics.keys", 64);
+    // Keyed histograms and counters by stage and key, so that looking one up doesn't build its name.
+    private static final Map<String, Map<String, LatencyHistogram>> keyedLatencies = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, LongAdder>> keyedCounters = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService exporter;
+
+    private Metrics() {
+    }
+
+    static LatencyHistogram latency(String stage) {
+        return latencies.computeIfAbsent(stage, (k) -> new LatencyHistogram());
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as given by {@link System#nanoTime()}.
+     */
+    static void record(String stage, long startNanos) {
+        latency(stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos} both for the stage as a whole and for the given key.
+     */
+    static void record(String stage, String key, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        latency(stage).record(elapsed);
+        Map<String, LatencyHistogram> byKey = keyedLatencies.computeIfAbsent(stage, (k) -> new ConcurrentHashMap<>());
+        LatencyHistogram h = byKey.get(key);
+        if (h == null) {
+            if (byKey.size() >= MAX_KEYS) {
+                count("metrics.overflow");
+                return;
+            }
+            h = latency(stage + "[" + key + "]");
+            byKey.putIfAbsent(key, h);
+        }
+        h.record(elapsed);
+    }
+
+    static void count(String name) {
+        count(name, 1);
+    }
+
+    static void count(String name, long n) {
+        counters.computeIfAbsent(name, (k) -> new LongAdder()).add(n);
+    }
+
+    /**
+     * Adds to the counter {@code name[key]}, if under the limit of keys per counter.
+     */
+    static void count(String name, String key, long n) {
+        Map<String, LongAdder> byKey = keyedCounters.computeIfAbsent(name, (k) -> new ConcurrentHashMap<>());
+        LongAdder c = byKey.get(key);
+        if (c == null) {
+            if (byKey.size() >= MAX_KEYS) {
+                count("metrics.overflow");
+                return;
+            }
+            c = counters.computeIfAbsent(name + "[" + key + "]", (k) -> new LongAdder());
+            byKey.putIfAbsent(key, c);
+        }
+        c.add(n);
+    }
+
+    static Map<String, Long> counters() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet())
+            result.put(e.getKey(), e.getValue().sum());
+        return result;
+    }
+
+    static Map<String, LatencyHistogram> latencies() {
+        return new TreeMap<>(latencies);
+    }
+
+    static void reset() {
+        for (LatencyHistogram h : latencies.values())
+            h.reset();
+        for (LongAdder c : counters.values())
+            c.reset();
+    }
+
+    static String summary(LatencyHistogram h) {
+        return String.format("%d, mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, max %.3f ms", h.getCount(),
+                h.getMean() / 1e6, h.getPercentile(50) / 1e6, h.getPercentile(90) / 1e6, h.getPercentile(99) / 1e6,
+                h.getMax() / 1e6);
+    }
+
+    static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> e : latencies().entrySet())
+            sb.append(e.getKey()).append(": ").append(summary(e.getValue())).append('\n');
+        for (Map.Entry<String, Long> e : counters().entrySet())
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Writes the report to a file, replacing it atomically so readers never see it half written.
+     */
+    static void export(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, Charset.forName("UTF-8"))) {
+            out.write(report());
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Registers the JMX bean and starts the periodic file export, if configured. Called once from each entry point.
+     */
+    static synchronized void init() {
+        try {
+            ObjectName name = new ObjectName("org.unbiquitous.unbihealth.fisiogame:type=Metrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(), name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
+        String file = System.getProperty("fisiogame.metrics");
+        if ((file == null) || (exporter != null))
+            return;
+        final Path path = Paths.get(file);
+        long period = Long.getLong("fisiogame.metrics.period", 10);
+        exporter = Executors.newSingleThreadScheduledExecutor(Threads.daemon("metrics-export-"));
+        exporter.scheduleAtFixedRate(() -> {
+            try {
+                export(path);
+            } catch (IOException e) {
+                System.err.println("Failed to export metrics: " + e);
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    private static final class MXBean implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getCounters() {
+            return counters();
+        }
+
+        @Override
+        public Map<String, String> getLatencies() {
+            Map<String, String> result = new TreeMap<>();
+            for (Map.Entry<String, LatencyHistogram> e : latencies().entrySet())
+                result.put(e.getKey(), summary(e.getValue()));
+            return result;
+        }
+
+        @Override
+        public String getReport() {
+            return report();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link Metrics} of this process.
+ */
+public interface MetricsMXBean {
+    Map<String, Long> getCounters();
+
+    /**
+     * Latency summaries by stage: count, mean, percentiles and max, in milliseconds.
+     */
+    Map<String, String> getLatencies();
+
+    String getReport();
+
+    void reset();
+}
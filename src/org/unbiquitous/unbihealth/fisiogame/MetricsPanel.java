@@ -0,0 +1,67 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import javax.swing.JButton;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Shows the current {@link Metrics} report, refreshed every second while visible. The report is built off the event
+ * dispatch thread.
+ */
+class MetricsPanel extends JPanel {
+    private static final int REFRESH_MILLIS = 1000;
+
+    private final JTextArea txtReport = new JTextArea();
+    private final Timer timer = new Timer(REFRESH_MILLIS, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            refresh();
+        }
+    });
+
+    MetricsPanel() {
+        super(new BorderLayout());
+        txtReport.setEditable(false);
+        txtReport.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        add(new JScrollPane(txtReport), BorderLayout.CENTER);
+
+        JPanel buttonsPane = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        JButton btnReset = new JButton("Reset");
+        btnReset.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Metrics.reset();
+                refresh();
+            }
+        });
+        buttonsPane.add(btnReset);
+        add(buttonsPane, BorderLayout.SOUTH);
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        refresh();
+        timer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    private void refresh() {
+        CompletableFuture.supplyAsync(Metrics::report)
+                .thenAccept((report) -> SwingUtilities.invokeLater(() -> txtReport.setText(report)));
+    }
+}
@@ -0,0 +1,217 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers pin updates to the game asynchronously.
+ * <p>
+ * Updates are queued and sent in batches by a single background thread, at most {@code windowMillis} after the first
+ * update of the batch was queued. Pins holding a state, set with {@link #update}, are coalesced: an update to a pin
+ * that is already waiting in the queue replaces its value instead of adding another message, so the queue never holds
+ * more than one entry per such pin. Pins reporting discrete events, such as a punch, are set with {@link #event} and
+ * never coalesced, so two events within a window are both delivered, in order. Callers never block on the network.
+ * Updates after {@link #shutdown()} are dropped and counted.
+ */
+class NotifyPipeline {
+    /**
+     * Sends a single notify, usually through the uOS gateway.
+     */
+    interface Sender {
+        void send(Notify notify) throws Exception;
+    }
+
+    static final long DEFAULT_WINDOW_MILLIS = 20;
+
+    private static final String DRIVER = "unbihealth.PinDriver";
+    private static final String EVENT_KEY = "update";
+
+    private static final class Pending {
+        final String pin;
+        float value;
+        final long queuedAt;
+
+        Pending(String pin, float value, long queuedAt) {
+            this.pin = pin;
+            this.value = value;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final Sender sender;
+    private final long windowMillis;
+    private final ScheduledExecutorService thread = Executors.newSingleThreadScheduledExecutor(
+            Threads.daemon("notify-"));
+
+    private final Object lock = new Object();
+    private List<Pending> queue = new ArrayList<>();
+    // Updates of state pins in the queue, by pin.
+    private final Map<String, Pending> waiting = new HashMap<>();
+    private int sending;
+    private boolean closed;
+
+    private final AtomicLong queued = new AtomicLong(), coalesced = new AtomicLong(), sent = new AtomicLong(),
+            failed = new AtomicLong(), dropped = new AtomicLong(), batches = new AtomicLong(),
+            totalLatency = new AtomicLong(), maxLatency = new AtomicLong();
+
+    NotifyPipeline(Sender sender, long windowMillis) {
+        this.sender = sender;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Queues an update of {@code pin}, replacing any update of the same pin that wasn't sent yet.
+     */
+    void update(String pin, float value) {
+        enqueue(pin, value, true);
+    }
+
+    /**
+     * Queues an event on {@code pin}, sent even if other events of the same pin are waiting.
+     */
+    void event(String pin, float value) {
+        enqueue(pin, value, false);
+    }
+
+    private void enqueue(String pin, float value, boolean coalesce) {
+        boolean schedule;
+        synchronized (lock) {
+            if (closed) {
+                dropped.incrementAndGet();
+                Metrics.count("notify.dropped");
+                return;
+            }
+            queued.incrementAndGet();
+            Pending p = coalesce ? waiting.get(pin) : null;
+            if (p != null) {
+                p.value = value;
+                coalesced.incrementAndGet();
+                Metrics.count("notify.coalesced");
+                return;
+            }
+            schedule = queue.isEmpty();
+            p = new Pending(pin, value, System.nanoTime());
+            queue.add(p);
+            if (coalesce)
+                waiting.put(pin, p);
+        }
+        if (schedule) {
+            try {
+                thread.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down meanwhile; the last flush sends it.
+            }
+        }
+    }
+
+    private void flush() {
+        List<Pending> batch;
+        synchronized (lock) {
+            if (queue.isEmpty())
+                return;
+            batch = queue;
+            queue = new ArrayList<>();
+            waiting.clear();
+            sending = batch.size();
+        }
+        batches.incrementAndGet();
+        for (Pending p : batch) {
+            Notify n = new Notify(EVENT_KEY, DRIVER);
+            n.setEventKey(EVENT_KEY);
+            n.addParameter("pin", p.pin);
+            n.addParameter("value", p.value);
+            long start = System.nanoTime();
+            try {
+                sender.send(n);
+                sent.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                Metrics.count("notify.failed");
+                System.err.println("Failed to notify pin '" + p.pin + "': " + e);
+            }
+            Metrics.record("notify.send", start);
+            long latency = System.nanoTime() - p.queuedAt;
+            Metrics.latency("notify.latency").record(latency);
+            totalLatency.addAndGet(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
+            synchronized (lock) {
+                --sending;
+            }
+        }
+    }
+
+    /**
+     * Updates waiting to be sent, including the ones of the batch being sent right now.
+     */
+    int getQueueDepth() {
+        synchronized (lock) {
+            return queue.size() + sending;
+        }
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Updates given after {@link #shutdown()}, never sent.
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Mean time from queueing an update until it was sent, in milliseconds.
+     */
+    double getMeanLatencyMillis() {
+        long n = sent.get() + failed.get();
+        return (n == 0) ? 0 : totalLatency.get() / 1e6 / n;
+    }
+
+    double getMaxLatencyMillis() {
+        return maxLatency.get() / 1e6;
+    }
+
+    /**
+     * Sends whatever is still queued, then stops the background thread.
+     */
+    void shutdown() {
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        thread.execute(this::flush);
+        thread.shutdown();
+        try {
+            thread.awaitTermination(windowMillis + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("notifies: %d queued, %d coalesced, %d sent in %d batches, %d failed, %d waiting, "
+                        + "%d dropped; latency: %.1f ms mean, %.1f ms max", queued.get(), coalesced.get(), sent.get(),
+                batches.get(), failed.get(), getQueueDepth(), dropped.get(), getMeanLatencyMillis(),
+                getMaxLatencyMillis());
+    }
+}
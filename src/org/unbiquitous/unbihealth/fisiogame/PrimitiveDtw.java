@@ -0,0 +1,207 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import java.util.Arrays;
+
+/**
+ * Exact DTW between two {@link Curve}s, summing a {@link QuaternionDistance} over the warp path. By default it is
+ * {@link QuaternionDistance#CHEBYSHEV}, the same cost as {@link Curves#WORST_DIST}.
+ * <p>
+ * Only two rows of the cost matrix are kept, and they are reused between calls, so comparing curves of similar length
+ * doesn't allocate anything. The comparison can be restricted to a Sakoe-Chiba band around the diagonal, in which
+ * case only the band cells are computed. Fused multi-sensor curves are compared as arrays of curves sampled at the
+ * same times, taking the largest distance among the sensors. The point distances of each row are computed first,
+ * one sensor at a time, into a reusable buffer, keeping the loops over the component arrays free of dependencies.
+ * <p>
+ * Since every warp path crosses every row, the cheapest cell of a row is a lower bound of the distance, and the
+ * comparison can be abandoned as soon as it reaches a given limit.
+ * <p>
+ * {@link #path} is the exception: it keeps a step of the whole matrix, to recover the warp path for display.
+ * <p>
+ * Not thread-safe: use one instance per thread.
+ */
+final class PrimitiveDtw {
+    private static final double INF = Double.POSITIVE_INFINITY;
+
+    /**
+     * Largest cost matrix, in cells, {@link #path} accepts; it keeps one byte per cell.
+     */
+    static final long MAX_PATH_CELLS = 1 << 24;
+
+    private static final byte DIAGONAL = 0, UP = 1, LEFT = 2;
+
+    private double[] prev = new double[0], cur = new double[0], dist = new double[0];
+    private final Curve[] singleA = new Curve[1], singleB = new Curve[1];
+    // Range of the last row written to each buffer; anything outside it is infinite.
+    private int prevLo, prevHi, curLo, curHi;
+
+    double distance(Curve a, Curve b) {
+        return distance(a, b, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param radius half-width of the band, in points of {@code b}, around the diagonal. The band is widened if
+     *               needed to keep a path between both ends.
+     */
+    double distance(Curve a, Curve b, int radius) {
+        singleA[0] = a;
+        singleB[0] = b;
+        try {
+            return distance(singleA, singleB, radius);
+        } finally {
+            singleA[0] = singleB[0] = null;
+        }
+    }
+
+    double distance(Curve[] a, Curve[] b) {
+        return distance(a, b, Integer.MAX_VALUE);
+    }
+
+    double distance(Curve[] a, Curve[] b, int radius) {
+        return distance(a, b, radius, QuaternionDistance.CHEBYSHEV);
+    }
+
+    double distance(Curve[] a, Curve[] b, int radius, QuaternionDistance kernel) {
+        return distance(a, b, radius, kernel, INF);
+    }
+
+    /**
+     * @param abandon limit at which the comparison stops, returning {@link Double#POSITIVE_INFINITY}.
+     */
+    double distance(Curve[] a, Curve[] b, int radius, QuaternionDistance kernel, double abandon) {
+        if (a.length != b.length)
+            throw new IllegalArgumentException("curves have different number of sensors");
+        final int n = a[0].size, m = b[0].size, groups = a.length;
+        if ((n == 0) || (m == 0))
+            throw new IllegalArgumentException("empty curve");
+        if (prev.length < m) {
+            prev = new double[m];
+            cur = new double[m];
+            dist = new double[m];
+        }
+        Arrays.fill(prev, 0, m, INF);
+        Arrays.fill(cur, 0, m, INF);
+        prevLo = curLo = 0;
+        prevHi = curHi = m - 1;
+        radius = Math.max(radius, (m + n - 1) / n);
+
+        for (int i = 0; i < n; ++i) {
+            int lo, hi;
+            if ((n == 1) || (radius >= m)) {
+                lo = 0;
+                hi = m - 1;
+            } else {
+                int c = (int) ((long) i * (m - 1) / (n - 1));
+                lo = Math.max(0, c - radius);
+                hi = Math.min(m - 1, c + radius);
+            }
+            // Clears what is left of the row computed two steps ago outside the new band.
+            if (curLo < lo)
+                Arrays.fill(cur, curLo, Math.min(lo, curHi + 1), INF);
+            if (curHi > hi)
+                Arrays.fill(cur, Math.max(hi + 1, curLo), curHi + 1, INF);
+
+            final double[] p = prev, c = cur, d = dist;
+            for (int k = 0; k < groups; ++k) {
+                final Curve g = a[k];
+                kernel.row(g.s[i], g.x[i], g.y[i], g.z[i], b[k], lo, hi, d, k > 0);
+            }
+            double left = INF, min = INF;
+            for (int j = lo; j <= hi; ++j) {
+                double best;
+                if (i == 0)
+                    best = (j == 0) ? 0 : left;
+                else {
+                    best = p[j];
+                    if ((j > 0) && (p[j - 1] < best))
+                        best = p[j - 1];
+                    if (left < best)
+                        best = left;
+                }
+                left = c[j] = best + d[j];
+                if (left < min)
+                    min = left;
+            }
+            if (min >= abandon)
+                return INF;
+
+            prev = c;
+            cur = p;
+            curLo = prevLo;
+            curHi = prevHi;
+            prevLo = lo;
+            prevHi = hi;
+        }
+        return (prev[m - 1] < abandon) ? prev[m - 1] : INF;
+    }
+
+    /**
+     * Computes the exact DTW over the full matrix and returns its warp path, as the indices of the aligned points of
+     * {@code a} in {@code path[0]} and of {@code b} in {@code path[1]}, from the first points to the last. Ties are
+     * broken the same way as {@link #distance}, so the path costs what it returns.
+     *
+     * @throws IllegalArgumentException if the matrix is larger than {@link #MAX_PATH_CELLS}.
+     */
+    static int[][] path(Curve[] a, Curve[] b, QuaternionDistance kernel) {
+        if (a.length != b.length)
+            throw new IllegalArgumentException("curves have different number of sensors");
+        final int n = a[0].size, m = b[0].size, groups = a.length;
+        if ((n == 0) || (m == 0))
+            throw new IllegalArgumentException("empty curve");
+        if ((long) n * m > MAX_PATH_CELLS)
+            throw new IllegalArgumentException("curves too long for a full DTW matrix: " + n + " x " + m);
+
+        byte[] steps = new byte[n * m];
+        double[] p = new double[m], c = new double[m], d = new double[m];
+        for (int i = 0; i < n; ++i) {
+            for (int k = 0; k < groups; ++k) {
+                final Curve g = a[k];
+                kernel.row(g.s[i], g.x[i], g.y[i], g.z[i], b[k], 0, m - 1, d, k > 0);
+            }
+            double left = INF;
+            for (int j = 0, cell = i * m; j < m; ++j, ++cell) {
+                double best;
+                byte step;
+                if (i == 0) {
+                    best = (j == 0) ? 0 : left;
+                    step = LEFT;
+                } else {
+                    best = p[j];
+                    step = UP;
+                    if ((j > 0) && (p[j - 1] < best)) {
+                        best = p[j - 1];
+                        step = DIAGONAL;
+                    }
+                    if (left < best) {
+                        best = left;
+                        step = LEFT;
+                    }
+                }
+                steps[cell] = step;
+                left = c[j] = best + d[j];
+            }
+            double[] t = p;
+            p = c;
+            c = t;
+        }
+
+        int[] is = new int[n + m], js = new int[n + m];
+        int len = 0;
+        for (int i = n - 1, j = m - 1; ; ++len) {
+            is[len] = i;
+            js[len] = j;
+            if ((i == 0) && (j == 0))
+                break;
+            byte step = steps[i * m + j];
+            if (step != LEFT)
+                --i;
+            if (step != UP)
+                --j;
+        }
+        int[][] path = new int[2][len + 1];
+        for (int k = 0; k <= len; ++k) {
+            path[0][k] = is[len - k];
+            path[1][k] = js[len - k];
+        }
+        return path;
+    }
+}
@@ -0,0 +1,194 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.util.DistanceFunction;
+
+/**
+ * Point distances for DTW between curves of quaternion deltas.
+ * <p>
+ * Curves hold deltas from the first sample of a tared recording, whose orientation is the identity, so the
+ * orientation at each point is the delta plus {@code (1, 0, 0, 0)}. Besides the component-wise Chebyshev distance
+ * used so far, the other distances treat {@code q} and {@code -q} as the same rotation, which only holds while that
+ * is true: for deltas from any other base, the sign-invariant distances compare the wrong orientations. Callers
+ * that know the base check it with {@link #isTared}; {@link StreamingMatcher} leaves out the references with a
+ * sign-invariant distance for as long as its base isn't tared. The distances are:
+ * <ul>
+ * <li>{@link #CHEBYSHEV_CANONICAL}: the Chebyshev distance to whichever of {@code q} and {@code -q} is closer.</li>
+ * <li>{@link #DOT}: the chordal distance {@code sqrt(2 - 2|q1 . q2|)}, from a single dot product.</li>
+ * <li>{@link #GEODESIC}: half the rotation angle between both orientations, {@code acos(|q1 . q2|)}.</li>
+ * </ul>
+ * Deltas from a base that is only within {@link #TARE_TOLERANCE} of the identity don't add up to unit quaternions,
+ * so {@link #DOT} and {@link #GEODESIC} normalize both orientations first ({@link #isNormalized}). For unit
+ * quaternions the distances only grow along that list, and all of them are at least {@link #CHEBYSHEV_CANONICAL};
+ * normalizing moves each component of a point by at most how far its norm is from 1, so lower bounds computed for
+ * {@link #CHEBYSHEV_CANONICAL} hold for the normalized distances once reduced by that much for both points. All of
+ * them are close to half the rotation angle for small rotations, so the same match threshold applies.
+ * <p>
+ * Distances are computed a row at a time, one point of a curve against a run of points of another, with loops over
+ * the component arrays of {@link Curve} that the JIT compiler can vectorize.
+ */
+enum QuaternionDistance {
+    CHEBYSHEV {
+        @Override
+        double between(double s1, double x1, double y1, double z1, double s2, double x2, double y2, double z2) {
+            return Math.max(Math.max(Math.abs(s1 - s2), Math.abs(x1 - x2)),
+                    Math.max(Math.abs(y1 - y2), Math.abs(z1 - z2)));
+        }
+
+        @Override
+        void row(double s, double x, double y, double z, Curve b, int lo, int hi, double[] out, boolean max) {
+            final double[] bs = b.s, bx = b.x, by = b.y, bz = b.z;
+            for (int j = lo; j <= hi; ++j) {
+                double d = Math.max(Math.max(Math.abs(s - bs[j]), Math.abs(x - bx[j])),
+                        Math.max(Math.abs(y - by[j]), Math.abs(z - bz[j])));
+                out[j] = max ? Math.max(out[j], d) : d;
+            }
+        }
+    },
+
+    CHEBYSHEV_CANONICAL {
+        @Override
+        double between(double s1, double x1, double y1, double z1, double s2, double x2, double y2, double z2) {
+            double same = Math.max(Math.max(Math.abs(s1 - s2), Math.abs(x1 - x2)),
+                    Math.max(Math.abs(y1 - y2), Math.abs(z1 - z2)));
+            // -q2 as a delta is (-s2 - 2, -x2, -y2, -z2).
+            double flipped = Math.max(Math.max(Math.abs(s1 + s2 + 2), Math.abs(x1 + x2)),
+                    Math.max(Math.abs(y1 + y2), Math.abs(z1 + z2)));
+            return Math.min(same, flipped);
+        }
+
+        @Override
+        void row(double s, double x, double y, double z, Curve b, int lo, int hi, double[] out, boolean max) {
+            final double[] bs = b.s, bx = b.x, by = b.y, bz = b.z;
+            for (int j = lo; j <= hi; ++j) {
+                double same = Math.max(Math.max(Math.abs(s - bs[j]), Math.abs(x - bx[j])),
+                        Math.max(Math.abs(y - by[j]), Math.abs(z - bz[j])));
+                double flipped = Math.max(Math.max(Math.abs(s + bs[j] + 2), Math.abs(x + bx[j])),
+                        Math.max(Math.abs(y + by[j]), Math.abs(z + bz[j])));
+                double d = Math.min(same, flipped);
+                out[j] = max ? Math.max(out[j], d) : d;
+            }
+        }
+    },
+
+    DOT {
+        @Override
+        double between(double s1, double x1, double y1, double z1, double s2, double x2, double y2, double z2) {
+            double w1 = s1 + 1, w2 = s2 + 1;
+            double dot = w1 * w2 + x1 * x2 + y1 * y2 + z1 * z2;
+            double norms = Math.sqrt((w1 * w1 + x1 * x1 + y1 * y1 + z1 * z1) * (w2 * w2 + x2 * x2 + y2 * y2 + z2 * z2));
+            return Math.sqrt(Math.max(0, 2 - 2 * Math.abs(dot) / norms));
+        }
+
+        @Override
+        void row(double s, double x, double y, double z, Curve b, int lo, int hi, double[] out, boolean max) {
+            final double[] bs = b.s, bx = b.x, by = b.y, bz = b.z;
+            final double w = s + 1, n = w * w + x * x + y * y + z * z;
+            for (int j = lo; j <= hi; ++j) {
+                double v = bs[j] + 1;
+                double dot = w * v + x * bx[j] + y * by[j] + z * bz[j];
+                double norms = Math.sqrt(n * (v * v + bx[j] * bx[j] + by[j] * by[j] + bz[j] * bz[j]));
+                double d = Math.sqrt(Math.max(0, 2 - 2 * Math.abs(dot) / norms));
+                out[j] = max ? Math.max(out[j], d) : d;
+            }
+        }
+    },
+
+    GEODESIC {
+        @Override
+        double between(double s1, double x1, double y1, double z1, double s2, double x2, double y2, double z2) {
+            double w1 = s1 + 1, w2 = s2 + 1;
+            double dot = w1 * w2 + x1 * x2 + y1 * y2 + z1 * z2;
+            double norms = Math.sqrt((w1 * w1 + x1 * x1 + y1 * y1 + z1 * z1) * (w2 * w2 + x2 * x2 + y2 * y2 + z2 * z2));
+            return Math.acos(Math.min(1, Math.abs(dot) / norms));
+        }
+
+        @Override
+        void row(double s, double x, double y, double z, Curve b, int lo, int hi, double[] out, boolean max) {
+            final double[] bs = b.s, bx = b.x, by = b.y, bz = b.z;
+            final double w = s + 1, n = w * w + x * x + y * y + z * z;
+            for (int j = lo; j <= hi; ++j) {
+                double v = bs[j] + 1;
+                double dot = w * v + x * bx[j] + y * by[j] + z * bz[j];
+                double norms = Math.sqrt(n * (v * v + bx[j] * bx[j] + by[j] * by[j] + bz[j] * bz[j]));
+                double d = Math.acos(Math.min(1, Math.abs(dot) / norms));
+                out[j] = max ? Math.max(out[j], d) : d;
+            }
+        }
+    };
+
+    /**
+     * Distance between two points, given as quaternion deltas.
+     */
+    abstract double between(double s1, double x1, double y1, double z1, double s2, double x2, double y2, double z2);
+
+    /**
+     * Computes the distance from the point {@code (s, x, y, z)} to the points {@code lo} to {@code hi} of {@code b},
+     * storing it at the same positions of {@code out}, or keeping the largest of it and what is already there if
+     * {@code max} is set (to combine the sensors of a fused curve).
+     */
+    abstract void row(double s, double x, double y, double z, Curve b, int lo, int hi, double[] out, boolean max);
+
+    /**
+     * Largest difference in any component, from the identity or its opposite, of a base still taken as tared.
+     */
+    static final double TARE_TOLERANCE = 0.05;
+
+    /**
+     * Whether a raw base orientation is close enough to the identity for deltas from it to be compared by the
+     * sign-invariant distances, as after a tare.
+     */
+    static boolean isTared(double w, double x, double y, double z) {
+        return CHEBYSHEV_CANONICAL.between(w - 1, x, y, z, 0, 0, 0, 0) <= TARE_TOLERANCE;
+    }
+
+    /**
+     * Whether {@code q} and {@code -q} are at distance zero, so lower bounds must consider both signs.
+     */
+    boolean isSignInvariant() {
+        return this != CHEBYSHEV;
+    }
+
+    /**
+     * Whether both orientations are normalized before they are compared.
+     */
+    boolean isNormalized() {
+        return (this == DOT) || (this == GEODESIC);
+    }
+
+    /**
+     * How far the norm of the orientation of a delta is from 1, which bounds how much normalizing it moves any of
+     * its components.
+     */
+    static double normError(double s, double x, double y, double z) {
+        double w = s + 1;
+        return Math.abs(Math.sqrt(w * w + x * x + y * y + z * z) - 1);
+    }
+
+    private final DistanceFunction function = new DistanceFunction() {
+        @Override
+        public double calcDistance(double[] v1, double[] v2) {
+            if ((v1.length != v2.length) || (v1.length % 4 != 0))
+                throw new RuntimeException("vectors sizes don't match");
+            double max = 0;
+            for (int i = 0; i < v1.length; i += 4)
+                max = Math.max(max, between(v1[i], v1[i + 1], v1[i + 2], v1[i + 3],
+                        v2[i], v2[i + 1], v2[i + 2], v2[i + 3]));
+            return max;
+        }
+    };
+
+    /**
+     * The same distance for FastDTW, over points with four dimensions per sensor, taking the largest distance among
+     * the sensors.
+     */
+    DistanceFunction function() {
+        return function;
+    }
+
+    /**
+     * Parses a distance name, case insensitively.
+     */
+    static QuaternionDistance of(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,131 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.unbihealth.imu.Sample;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
+import org.unbiquitous.uos.core.messageEngine.messages.Response;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Records several sensors of the same IMU host at once.
+ * <p>
+ * The host is tared once, then the recordings of all sensors are started, and later stopped, with concurrent service
+ * calls. Sensors are always kept sorted by id, so fused curves put them in the same order regardless of how they were
+ * selected.
+ */
+class RecordingSession {
+    interface Caller {
+        CompletableFuture<Response> call(UpDevice device, Call call);
+    }
+
+    private final Caller caller;
+    private final UpDevice device;
+    private final List<String> sensorIds;
+    private final Map<String, String> recordIds = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    RecordingSession(Caller caller, UpDevice device, Collection<String> sensorIds) {
+        if (sensorIds.isEmpty())
+            throw new IllegalArgumentException("no sensors to record");
+        this.caller = caller;
+        this.device = device;
+        List<String> ids = new ArrayList<>(sensorIds);
+        Collections.sort(ids);
+        this.sensorIds = Collections.unmodifiableList(ids);
+    }
+
+    List<String> getSensorIds() {
+        return sensorIds;
+    }
+
+    /**
+     * Record ids by sensor id, once started.
+     */
+    Map<String, String> getRecordIds() {
+        synchronized (recordIds) {
+            return new LinkedHashMap<>(recordIds);
+        }
+    }
+
+    /**
+     * Tares the host and starts recording every sensor. If any of them fails, the ones that did start are stopped.
+     */
+    CompletableFuture<Void> start() {
+        return call(new Call(IMUDriver.DRIVER_NAME, IMUDriver.TARE_NAME)).thenCompose((tared) -> {
+            List<CompletableFuture<?>> starts = new ArrayList<>(sensorIds.size());
+            for (final String id : sensorIds) {
+                Call call = new Call(IMUDriver.DRIVER_NAME, IMUDriver.START_RECORD_NAME);
+                call.addParameter(IMUDriver.SENSOR_ID_PARAM_NAME, id);
+                starts.add(call(call, id).thenAccept((r) -> {
+                    String recordId = r.getResponseString(IMUDriver.RECORD_ID_PARAM_NAME);
+                    if (recordId == null)
+                        throw new CompletionException(new IllegalStateException("No record id for sensor " + id));
+                    recordIds.put(id, recordId);
+                }));
+            }
+            return allOf(starts).whenComplete((v, t) -> {
+                if (t != null)
+                    stop();
+            });
+        });
+    }
+
+    /**
+     * Stops every started recording, returning the samples of each sensor in sensor id order.
+     */
+    CompletableFuture<Map<String, List<Sample>>> stop() {
+        final Map<String, String> ids = getRecordIds();
+        recordIds.clear();
+        final Map<String, CompletableFuture<List<Sample>>> stops = new LinkedHashMap<>();
+        for (Map.Entry<String, String> e : ids.entrySet()) {
+            Call call = new Call(IMUDriver.DRIVER_NAME, IMUDriver.STOP_RECORD_NAME);
+            call.addParameter(IMUDriver.SENSOR_ID_PARAM_NAME, e.getKey());
+            call.addParameter(IMUDriver.RECORD_ID_PARAM_NAME, e.getValue());
+            final String id = e.getKey();
+            stops.put(id, call(call, id).thenApply((r) -> extractRecordedData(id, r)));
+        }
+        return allOf(new ArrayList<>(stops.values())).thenApply((v) -> {
+            Map<String, List<Sample>> samples = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<List<Sample>>> e : stops.entrySet())
+                samples.put(e.getKey(), e.getValue().join());
+            return samples;
+        });
+    }
+
+    private CompletableFuture<Response> call(Call call, String sensorId) {
+        final long start = System.nanoTime();
+        return call(call).whenComplete((r, t) -> Metrics.record("service.rtt", sensorId, start));
+    }
+
+    private CompletableFuture<Response> call(Call call) {
+        return caller.call(device, call).thenApply((r) -> {
+            if (r.getError() != null)
+                throw new CompletionException(new IllegalStateException(r.getError()));
+            return r;
+        });
+    }
+
+    private static List<Sample> extractRecordedData(String sensorId, Response r) {
+        try {
+            long start = System.nanoTime();
+            List<Sample> samples = IMUDriver.extractRecordedData(r);
+            Metrics.record("json.extract", sensorId, start);
+            Metrics.count("samples", sensorId, samples.size());
+            return samples;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+}
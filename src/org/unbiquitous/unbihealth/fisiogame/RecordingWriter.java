@@ -0,0 +1,239 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves a finished recording in a single pass over its samples, sensor by sensor, instead of one pass per file:
+ * <pre>
+ * walk.json               the samples as JSON, read back by {@link Curves#parseRecordings}: an array for a single
+ *                         sensor, an object with an array per sensor id otherwise
+ * walk.json.csv           the samples of a single sensor, relative to the first one; walk.json-id.csv for each
+ *                         sensor of a multi-sensor recording
+ * walk.fgc                the raw curves, aligned to the times of the first sensor, as a {@link CurveFile}, named
+ *                         as by {@link CurveConverter}
+ * walk.json-trimmed.csv   the processed curve, as it is matched
+ * </pre>
+ * The JSON and the per-sensor CSV files are written as each sample is added. The last two need the whole recording and
+ * are written on {@link #close()}, from a compact primitive copy of the samples kept meanwhile, about 40 bytes per
+ * sample. With compression on, the CSV exports are gzipped and get a {@code .gz} suffix; the JSON and binary files,
+ * which can be loaded as templates, are not.
+ * <p>
+ * Files are written next to {@code file}, which may be a temporary location: {@link #moveTo} renames all of them
+ * at once, so writing can start before the user has picked a name. Not thread-safe.
+ */
+final class RecordingWriter implements Closeable {
+    /**
+     * Whether saved recordings are compressed, from the {@code fisiogame.compress} system property.
+     */
+    static final boolean COMPRESS = Boolean.getBoolean("fisiogame.compress");
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ObjectWriter JSON = new ObjectMapper().writer()
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    /**
+     * Samples of one sensor, written as they are added.
+     */
+    final class Sensor implements Closeable {
+        private final SequenceWriter json;
+        private final Writer csv;
+        private final Curve raw = new Curve();
+        private final StringBuilder line = new StringBuilder(80);
+        private long t0;
+        private double s0, x0, y0, z0;
+
+        private Sensor(String id) throws IOException {
+            if (multiSensor)
+                generator.writeFieldName(id);
+            json = JSON.writeValues(generator).init(true);
+            csv = new BufferedWriter(new OutputStreamWriter(open(multiSensor ? "-" + id + ".csv" : ".csv", compress),
+                    UTF_8), BUFFER_SIZE);
+            csv.write("t;s;x;y;z\n");
+        }
+
+        void add(Sample sample) throws IOException {
+            json.write(sample);
+
+            Quaternion q = sample.getQuaternion();
+            long t = sample.getTimestamp();
+            double s = q.getQ0(), x = q.getQ1(), y = q.getQ2(), z = q.getQ3();
+            if (raw.size == 0) {
+                t0 = t;
+                s0 = s;
+                x0 = x;
+                y0 = y;
+                z0 = z;
+            }
+            raw.add(t, s, x, y, z);
+
+            line.setLength(0);
+            line.append(t - t0);
+            Curves.appendFixed(line.append(';'), s - s0);
+            Curves.appendFixed(line.append(';'), x - x0);
+            Curves.appendFixed(line.append(';'), y - y0);
+            Curves.appendFixed(line.append(';'), z - z0);
+            csv.append(line.append('\n'));
+        }
+
+        @Override
+        public void close() throws IOException {
+            json.close();
+            csv.close();
+        }
+    }
+
+    private final Path file;
+    private final boolean multiSensor, compress;
+    private final JsonGenerator generator;
+    private final List<Path> files = new ArrayList<>();
+    private final List<Curve> curves = new ArrayList<>();
+    private Sensor current;
+
+    /**
+     * @param sensors number of sensors that will be written; with more than one, the JSON is keyed by sensor id.
+     */
+    RecordingWriter(Path file, int sensors, boolean compress) throws IOException {
+        this.file = file;
+        this.compress = compress;
+        multiSensor = sensors > 1;
+        generator = JSON.getFactory().createGenerator(new BufferedOutputStream(open("", false), BUFFER_SIZE));
+        if (multiSensor)
+            generator.writeStartObject();
+    }
+
+    /**
+     * Writes a whole recording to a new set of files, deleting them if it fails.
+     */
+    static RecordingWriter write(Path file, Map<String, List<Sample>> recordings, boolean compress)
+            throws IOException {
+        long start = System.nanoTime();
+        RecordingWriter w = new RecordingWriter(file, recordings.size(), compress);
+        try {
+            for (Map.Entry<String, List<Sample>> e : recordings.entrySet()) {
+                Sensor s = w.sensor(e.getKey());
+                for (Sample sample : e.getValue())
+                    s.add(sample);
+            }
+            w.close();
+        } catch (IOException | RuntimeException e) {
+            w.closeQuietly();
+            w.delete();
+            throw e;
+        }
+        Metrics.record("save", start);
+        return w;
+    }
+
+    /**
+     * Starts the samples of another sensor, ending the ones of the previous sensor.
+     */
+    Sensor sensor(String id) throws IOException {
+        if (current != null)
+            current.close();
+        if (!multiSensor && !curves.isEmpty())
+            throw new IllegalStateException("single-sensor recording");
+        current = new Sensor(id);
+        curves.add(current.raw);
+        return current;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        if (multiSensor)
+            generator.writeEndObject();
+        generator.close();
+
+        for (Curve c : curves)
+            if (c.size == 0)
+                return;
+        Curve[] raw = curves.toArray(new Curve[curves.size()]);
+        Path fgc = file.resolveSibling(stem(file) + CurveFile.EXTENSION);
+        CurveFile.write(fgc, Curves.align(raw), (short) 0);
+        files.add(fgc);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(open("-trimmed.csv", compress), UTF_8),
+                BUFFER_SIZE)) {
+            Curves.writeCSV(out, Curves.fuse(raw));
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (current != null)
+                current.close();
+            generator.close();
+        } catch (IOException e) {
+            // Already failing; the files are deleted next.
+        }
+    }
+
+    List<Path> getFiles() {
+        return files;
+    }
+
+    /**
+     * Renames every file written after {@code target}, keeping their suffixes.
+     */
+    void moveTo(Path target) throws IOException {
+        String name = file.getFileName().toString(), stem = stem(file);
+        for (int i = 0; i < files.size(); ++i) {
+            Path f = files.get(i);
+            String n = f.getFileName().toString();
+            Path moved = n.startsWith(name) ? target.resolveSibling(target.getFileName() + n.substring(name.length()))
+                    : target.resolveSibling(stem(target) + n.substring(stem.length()));
+            Files.move(f, moved, StandardCopyOption.REPLACE_EXISTING);
+            files.set(i, moved);
+        }
+    }
+
+    void delete() throws IOException {
+        for (Path f : files)
+            Files.deleteIfExists(f);
+        files.clear();
+    }
+
+    private Path sibling(String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+
+    /**
+     * File name without its {@code .json} extension.
+     */
+    private static String stem(Path path) {
+        String name = path.getFileName().toString();
+        return name.toLowerCase().endsWith(".json") ? name.substring(0, name.length() - 5) : name;
+    }
+
+    private OutputStream open(String suffix, boolean gzip) throws IOException {
+        Path path = sibling(gzip ? suffix + ".gz" : suffix);
+        files.add(path);
+        OutputStream out = Files.newOutputStream(path);
+        return gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+    }
+}
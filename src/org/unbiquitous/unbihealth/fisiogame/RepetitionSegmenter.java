@@ -0,0 +1,189 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+import org.apache.commons.math3.complex.Quaternion;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits a continuous stream of samples, covering a whole exercise set, into repetitions as they complete.
+ * <p>
+ * Two detectors run side by side on the stream. A {@link Trimmer} ends a repetition whenever the sensor stays still
+ * for {@code restMillis}, and a {@link StreamingMatcher} ends one whenever the latest stretch of samples matches one
+ * of the templates, which also splits repetitions done back to back without pausing. When a still period closes a
+ * stretch of motion that a template match already covers in part, only the motion after the last match is reported,
+ * as a repetition no template matched; if nothing moves after it, nothing more is reported. Both detectors take the
+ * position the sensor rested at as the base for the next repetition; a template match doesn't change the base, so
+ * repetitions done back to back are matched relative to the rest before the first of them.
+ * <p>
+ * Only single-sensor streams are segmented; for multi-sensor sessions, the first sensor drives the segmentation and
+ * {@link #window} cuts the matching stretch out of every sensor. Not thread-safe.
+ */
+class RepetitionSegmenter implements SampleSink {
+    static final long DEFAULT_REST_MILLIS = 300;
+
+    /**
+     * A repetition found in the stream.
+     */
+    static final class Repetition {
+        final long startTime, endTime;
+        /**
+         * Template that delimited the repetition and its distance, or {@code null} and infinity if it was delimited
+         * by a still period.
+         */
+        final String curveId;
+        final double distance;
+
+        Repetition(long startTime, long endTime, String curveId, double distance) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.curveId = curveId;
+            this.distance = distance;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + startTime + ", " + endTime + "]" + ((curveId == null) ? "" : " " + curveId + ": " + distance);
+        }
+    }
+
+    interface Listener {
+        void onRepetition(Repetition repetition);
+    }
+
+    private final Listener listener;
+    private final Trimmer trimmer;
+    private final StreamingMatcher matcher;
+    // End of the last repetition found by a template; segments are only reported from there on.
+    private long lastMatchEnd = Long.MIN_VALUE;
+
+    RepetitionSegmenter(Map<String, TimeSeries> templates, double threshold, long restMillis, Listener listener) {
+        this(templates, Collections.<String, QuaternionDistance>emptyMap(), threshold, restMillis, listener);
+    }
+
+    /**
+     * @param kernels point distance of each template; templates left out use {@link QuaternionDistance#CHEBYSHEV}.
+     */
+    RepetitionSegmenter(Map<String, TimeSeries> templates, Map<String, QuaternionDistance> kernels, double threshold,
+                        long restMillis, Listener listener) {
+        this.listener = listener;
+        trimmer = new Trimmer(new Curve(), restMillis, this::onStill);
+        matcher = new StreamingMatcher(templates, kernels, threshold, this::onMatch);
+    }
+
+    void reset() {
+        trimmer.reset();
+        matcher.reset();
+        lastMatchEnd = Long.MIN_VALUE;
+    }
+
+    @Override
+    public void accept(long timestamp, double w, double x, double y, double z) {
+        matcher.accept(timestamp, w, x, y, z);
+        trimmer.accept(timestamp, w, x, y, z);
+    }
+
+    /**
+     * Reports the repetition in progress, if any, at the end of the stream.
+     */
+    void finish() {
+        matcher.flush();
+        if (!trimmer.isActive())
+            return;
+        long start = trimmer.getSegmentStart();
+        Curve c = trimmer.finish();
+        onStill(c, start, start + (long) c.t[c.size - 1]);
+    }
+
+    private void onMatch(String curveId, double distance, long startTime, long endTime) {
+        lastMatchEnd = endTime;
+        listener.onRepetition(new Repetition(startTime, endTime, curveId, distance));
+    }
+
+    private void onStill(Curve segment, long startTime, long endTime) {
+        // A match held until nothing overlapping could beat it would be lost by the reset.
+        matcher.flush();
+        if (startTime > lastMatchEnd) {
+            listener.onRepetition(new Repetition(startTime, endTime, null, Double.POSITIVE_INFINITY));
+            return;
+        }
+        // The segment may go on past the last match, with a repetition that followed it without a pause.
+        int i = 0;
+        while ((i < segment.size) && (startTime + (long) segment.t[i] <= lastMatchEnd))
+            ++i;
+        if ((i == 0) || (i == segment.size))
+            return;
+        int m = i - 1;
+        for (int k = i; k < segment.size; ++k)
+            if (!Curves.atRest(segment.s[k] - segment.s[m], segment.x[k] - segment.x[m], segment.y[k] - segment.y[m],
+                    segment.z[k] - segment.z[m])) {
+                long start = startTime + (long) segment.t[i];
+                listener.onRepetition(new Repetition(start, endTime, null, Double.POSITIVE_INFINITY));
+                return;
+            }
+    }
+
+    /**
+     * Runs a complete recording through a segmenter and returns the repetitions found. Samples go through
+     * {@link Resampler#CONFIGURED} first, like the templates did.
+     */
+    static List<Repetition> split(List<Sample> samples, Map<String, TimeSeries> templates,
+                                  Map<String, QuaternionDistance> kernels, double threshold, long restMillis) {
+        final List<Repetition> repetitions = new ArrayList<>();
+        RepetitionSegmenter segmenter = new RepetitionSegmenter(templates, kernels, threshold, restMillis,
+                repetitions::add);
+        SampleSink sink = Resampler.CONFIGURED.stream(segmenter);
+        for (int i = 0, n = samples.size(); i < n; ++i) {
+            Sample s = samples.get(i);
+            Quaternion q = s.getQuaternion();
+            sink.accept(s.getTimestamp(), q.getQ0(), q.getQ1(), q.getQ2(), q.getQ3());
+        }
+        segmenter.finish();
+        return repetitions;
+    }
+
+    /**
+     * Splits a recording of one or more sensors into repetitions, segmenting on the first sensor, and returns the
+     * fused curve of each repetition, ready to be classified.
+     */
+    static Map<Repetition, TimeSeries> curves(Map<String, List<Sample>> recordings, Map<String, TimeSeries> templates,
+                                              Map<String, QuaternionDistance> kernels, double threshold,
+                                              long restMillis) {
+        Map<Repetition, TimeSeries> curves = new LinkedHashMap<>();
+        List<Sample> first = recordings.values().iterator().next();
+        long previousEnd = Long.MIN_VALUE;
+        for (Repetition r : split(first, templates, kernels, threshold, restMillis)) {
+            // Keeps a short stretch of the rest before the motion, which trimming takes as the base.
+            long from = Math.max(previousEnd, r.startTime - restMillis);
+            List<List<Sample>> windows = window(recordings, from, r.endTime);
+            previousEnd = r.endTime;
+            boolean empty = false;
+            for (List<Sample> w : windows)
+                empty |= w.isEmpty();
+            if (!empty)
+                curves.put(r, Curves.fuse(windows));
+        }
+        return curves;
+    }
+
+    /**
+     * Cuts the samples from {@code from} to {@code to}, inclusive, out of every recording.
+     */
+    static List<List<Sample>> window(Map<String, List<Sample>> recordings, long from, long to) {
+        List<List<Sample>> windows = new ArrayList<>(recordings.size());
+        for (List<Sample> r : recordings.values()) {
+            int i = 0, j = r.size();
+            while ((i < j) && (r.get(i).getTimestamp() < from))
+                ++i;
+            while ((j > i) && (r.get(j - 1).getTimestamp() > to))
+                --j;
+            windows.add(r.subList(i, j));
+        }
+        return windows;
+    }
+}
@@ -0,0 +1,133 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the samples of a {@link SampleStream} into repetitions while recording, handing each one over as soon as it
+ * completes, as the fused curve of every sensor, the same as {@link RepetitionSegmenter#curves} does once the
+ * recording has stopped.
+ * <p>
+ * The first sensor drives a {@link RepetitionSegmenter}, and the raw samples of every sensor are kept meanwhile, so
+ * each repetition is cut out of all of them along with a short stretch of the rest before it, which trimming takes as
+ * the base. As the sensors are fed one after the other, a repetition is held until every sensor has reached its end.
+ * Samples before the last repetition handed over are discarded, as well as the ones more than
+ * {@value #MAX_BUFFER_MILLIS} ms old, so memory doesn't grow with the length of the set.
+ * <p>
+ * Must be fed from a single thread, such as the consumer executor of the stream, which also calls the listener.
+ */
+final class RepetitionStream {
+    static final long MAX_BUFFER_MILLIS = 60000;
+
+    interface Listener {
+        void onRepetition(RepetitionSegmenter.Repetition repetition, TimeSeries curve);
+    }
+
+    private final Curve[] buffers;
+    private final RepetitionSegmenter segmenter;
+    private final long restMillis;
+    private final Listener listener;
+    private final ArrayDeque<RepetitionSegmenter.Repetition> pending = new ArrayDeque<>();
+    private long previousEnd = Long.MIN_VALUE;
+
+    /**
+     * Subscribes to every sensor of {@code sensorIds} in {@code stream}, which must not have started yet.
+     *
+     * @param kernels point distance of each template; templates left out use {@link QuaternionDistance#CHEBYSHEV}.
+     */
+    RepetitionStream(SampleStream stream, List<String> sensorIds, Map<String, TimeSeries> templates,
+                     Map<String, QuaternionDistance> kernels, double threshold, long restMillis, Listener listener) {
+        this.restMillis = restMillis;
+        this.listener = listener;
+        buffers = new Curve[sensorIds.size()];
+        segmenter = new RepetitionSegmenter(templates, kernels, threshold, restMillis, pending::add);
+        final SampleSink segments = Resampler.CONFIGURED.stream(segmenter);
+        for (int k = 0; k < buffers.length; ++k) {
+            final Curve buffer = buffers[k] = new Curve();
+            final boolean first = k == 0;
+            stream.subscribe(sensorIds.get(k), (timestamp, w, x, y, z) -> {
+                if ((buffer.size > 0) && (timestamp - buffer.t[0] > 2 * MAX_BUFFER_MILLIS))
+                    discardBefore(buffer, timestamp - MAX_BUFFER_MILLIS);
+                buffer.add(timestamp, w, x, y, z);
+                if (first)
+                    segments.accept(timestamp, w, x, y, z);
+                if (!pending.isEmpty())
+                    emit(false);
+            });
+        }
+    }
+
+    /**
+     * Hands over the repetition in progress, if any, and the ones still waiting for other sensors, once the stream
+     * has stopped.
+     */
+    void finish() {
+        segmenter.finish();
+        emit(true);
+    }
+
+    private void emit(boolean all) {
+        while (!pending.isEmpty()) {
+            RepetitionSegmenter.Repetition r = pending.peek();
+            if (!all) {
+                for (Curve b : buffers)
+                    if ((b.size == 0) || (b.t[b.size - 1] < r.endTime))
+                        return;
+            }
+            pending.poll();
+            long from = Math.max(previousEnd, r.startTime - restMillis);
+            previousEnd = r.endTime;
+            Curve[] windows = new Curve[buffers.length];
+            boolean empty = false;
+            for (int k = 0; k < buffers.length; ++k) {
+                windows[k] = window(buffers[k], from, r.endTime);
+                empty |= windows[k].size == 0;
+            }
+            for (Curve b : buffers)
+                discardBefore(b, r.endTime);
+            if (empty)
+                continue;
+            TimeSeries curve;
+            try {
+                curve = Curves.fuse(windows);
+            } catch (IllegalArgumentException e) {
+                // The sensors don't overlap within the repetition.
+                continue;
+            }
+            listener.onRepetition(r, curve);
+        }
+    }
+
+    /**
+     * Copies the samples from {@code from} to {@code to}, inclusive.
+     */
+    private static Curve window(Curve c, double from, double to) {
+        int i = 0, j = c.size;
+        while ((i < j) && (c.t[i] < from))
+            ++i;
+        while ((j > i) && (c.t[j - 1] > to))
+            --j;
+        Curve w = new Curve(j - i);
+        for (int k = i; k < j; ++k)
+            w.add(c.t[k], c.s[k], c.x[k], c.y[k], c.z[k]);
+        return w;
+    }
+
+    private static void discardBefore(Curve c, double time) {
+        int i = 0;
+        while ((i < c.size) && (c.t[i] < time))
+            ++i;
+        if (i == 0)
+            return;
+        int n = c.size - i;
+        System.arraycopy(c.t, i, c.t, 0, n);
+        System.arraycopy(c.s, i, c.s, 0, n);
+        System.arraycopy(c.x, i, c.x, 0, n);
+        System.arraycopy(c.y, i, c.y, 0, n);
+        System.arraycopy(c.z, i, c.z, 0, n);
+        c.size = n;
+    }
+}
@@ -0,0 +1,206 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.unbiquitous.unbihealth.fisiogame.Curves.MATCH_THRESHOLD;
+
+/**
+ * Replays recorded sessions through the live pipeline, without an IMU host or a game: every sensor of the given
+ * recordings (as saved by the controller) becomes a stream that feeds its samples, paced by their timestamps, to a
+ * {@link RepetitionSegmenter}, and matched repetitions are notified through a {@link NotifyPipeline} whose sender
+ * only counts the notifies. Meant as a regression and load benchmark: how many simultaneous sensors a controller
+ * keeps up with.
+ * <p>
+ * Usage: {@code ReplayHarness --templates dir [--speed x] [--streams n] [--loops n] [--send-delay ms] file...}
+ * <pre>
+ * templates   directory with the reference curves, *.json or *.fgc
+ * speed       replay speed, relative to real time; 0 replays as fast as possible (default: 1)
+ * streams     number of simultaneous streams, cycling through the sensors of the files (default: one per sensor)
+ * loops       times each stream replays its recording (default: 1)
+ * send-delay  time the stub sender takes for each notify, in milliseconds (default: 0)
+ * </pre>
+ * Each stream runs on its own thread. Lag is how late each sample was fed compared to when it was due; a stream that
+ * can't keep up falls further and further behind.
+ */
+public class ReplayHarness {
+    private static final String USAGE = "Usage: ReplayHarness --templates dir [--speed x] [--streams n] [--loops n] "
+            + "[--send-delay ms] file...";
+
+    private final Map<String, TimeSeries> templates;
+    private final double speed;
+    private final int loops;
+    private final NotifyPipeline notifies;
+
+    private final AtomicLong samples = new AtomicLong(), repetitions = new AtomicLong(), matches = new AtomicLong();
+    private final LatencyHistogram lag = Metrics.latency("replay.lag");
+
+    ReplayHarness(Map<String, TimeSeries> templates, double speed, int loops, final long sendDelayMillis) {
+        this.templates = templates;
+        this.speed = speed;
+        this.loops = loops;
+        notifies = new NotifyPipeline((n) -> {
+            if (sendDelayMillis > 0)
+                Thread.sleep(sendDelayMillis);
+        }, Long.getLong("fisiogame.notifyWindow", NotifyPipeline.DEFAULT_WINDOW_MILLIS));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String templatesDir = null;
+        double speed = 1;
+        int streams = 0, loops = 1;
+        long sendDelay = 0;
+        List<Path> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                if (!args[i].startsWith("--")) {
+                    files.add(Paths.get(args[i]));
+                    continue;
+                }
+                if (i + 1 == args.length)
+                    throw new IllegalArgumentException("Invalid argument: " + args[i]);
+                String key = args[i].substring(2), value = args[++i];
+                if (key.equals("templates"))
+                    templatesDir = value;
+                else if (key.equals("speed"))
+                    speed = Double.parseDouble(value);
+                else if (key.equals("streams"))
+                    streams = Integer.parseInt(value);
+                else if (key.equals("loops"))
+                    loops = Integer.parseInt(value);
+                else if (key.equals("send-delay"))
+                    sendDelay = Long.parseLong(value);
+                else
+                    throw new IllegalArgumentException("Invalid argument: " + args[i - 1]);
+            }
+            if ((templatesDir == null) || files.isEmpty())
+                throw new IllegalArgumentException("Missing templates or recordings.");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        TemplateLoader loader = new TemplateLoader(Runtime.getRuntime().availableProcessors(),
+                new CurveCache(CurveCache.defaultDirectory()));
+        TemplateLoader.Result loaded = loader.loadDirectory(Paths.get(templatesDir)).get();
+        loader.shutdown();
+        for (Map.Entry<String, Throwable> e : loaded.failures.entrySet())
+            System.err.println("Failed to load file '" + e.getKey() + "': " + e.getValue());
+        System.out.println("Loaded " + loaded.curves.size() + " templates.");
+
+        List<Curve> sources = new ArrayList<>();
+        for (Path f : files)
+            sources.addAll(read(f));
+        if (streams <= 0)
+            streams = sources.size();
+
+        ReplayHarness harness = new ReplayHarness(loaded.curves, speed, loops, sendDelay);
+        System.out.println(harness.run(sources, streams));
+        System.out.print(Metrics.report());
+        System.exit(0);
+    }
+
+    /**
+     * Reads every sensor of a recording file as a raw curve, with absolute timestamps.
+     */
+    static List<Curve> read(Path file) throws IOException {
+        String json = new String(Files.readAllBytes(file), Charset.forName("UTF-8"));
+        List<Curve> curves = new ArrayList<>();
+        for (List<Sample> recording : Curves.parseRecordings(json).values()) {
+            if (!recording.isEmpty())
+                curves.add(Curves.toCurve(recording));
+        }
+        return curves;
+    }
+
+    /**
+     * Replays {@code streams} streams at once, cycling through the sources, and returns a summary once all of them
+     * are done.
+     */
+    String run(List<Curve> sources, int streams) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(streams, Threads.daemon("replay-"));
+        List<Callable<Void>> tasks = new ArrayList<>(streams);
+        for (int i = 0; i < streams; ++i) {
+            final Curve source = sources.get(i % sources.size());
+            final String pin = "punch-" + i;
+            tasks.add(() -> {
+                replay(source, pin);
+                return null;
+            });
+        }
+
+        long start = System.nanoTime();
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks))
+                f.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+        notifies.shutdown();
+
+        long n = samples.get();
+        double seconds = elapsed / 1e9;
+        StringBuilder sb = new StringBuilder();
+        sb.append(streams).append(" streams, ").append(n).append(" samples in ")
+                .append(String.format("%.3f", seconds)).append(" s (")
+                .append(String.format("%.0f", n / seconds)).append(" samples/s)\n");
+        if (speed > 0)
+            sb.append("lag: ").append(Metrics.summary(lag)).append('\n');
+        sb.append(repetitions.get()).append(" repetitions, ").append(matches.get()).append(" matched\n");
+        sb.append(notifies);
+        return sb.toString();
+    }
+
+    /**
+     * Feeds a source to its own pipeline, pacing the samples by their timestamps. Each stream notifies its own pin.
+     */
+    private void replay(Curve source, final String pin) {
+        RepetitionSegmenter segmenter = new RepetitionSegmenter(templates, MATCH_THRESHOLD,
+                RepetitionSegmenter.DEFAULT_REST_MILLIS, (r) -> {
+            repetitions.incrementAndGet();
+            if ((r.curveId != null) && (r.distance < MATCH_THRESHOLD)) {
+                matches.incrementAndGet();
+                notifies.event(pin, (float) (1 - r.distance / MATCH_THRESHOLD));
+            }
+        });
+        final double t0 = source.t[0];
+        for (int loop = 0; loop < loops; ++loop) {
+            if (loop > 0)
+                segmenter.reset();
+            // A new resampler each loop, as the timestamps start over.
+            SampleSink sink = Resampler.CONFIGURED.stream(segmenter);
+            long base = System.nanoTime();
+            for (int i = 0; i < source.size; ++i) {
+                if (speed > 0) {
+                    long due = base + (long) (TimeUnit.MILLISECONDS.toNanos(1) * (source.t[i] - t0) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0)
+                        LockSupport.parkNanos(wait);
+                    lag.record(Math.max(0, System.nanoTime() - due));
+                }
+                sink.accept((long) source.t[i], source.s[i], source.x[i], source.y[i], source.z[i]);
+            }
+            segmenter.finish();
+            samples.addAndGet(source.size);
+        }
+    }
+}
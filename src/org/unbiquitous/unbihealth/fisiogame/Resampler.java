@@ -0,0 +1,239 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+/**
+ * Resamples raw quaternion curves to a uniform rate before they are trimmed and compared, so the cost of DTW no
+ * longer depends on the sensor rate.
+ * <p>
+ * The curve is sampled every {@code periodMillis}, starting at its first sample, interpolating the orientation with
+ * SLERP between the samples around each point. With a {@code decimation} above 1, each run of that many points is then
+ * averaged into one, which low-pass filters the curve before dropping the rate: the quaternions of the run are summed
+ * on the same hemisphere as its first one and normalized, which is close to their mean rotation for the small angles
+ * covered by a run. An incomplete run at the end of a curve is dropped, unless it is the only one.
+ * <p>
+ * The same points come out of {@link #apply} on a whole curve and of {@link Stream} fed the same samples one at a
+ * time, so templates and live samples are preprocessed alike. Values are raw orientations, except for
+ * {@link #applyDeltas}, which takes quaternion deltas, as exported to CSV: those are not rotations, so they are
+ * interpolated and averaged linearly, component by component, which is what SLERP and the normalized mean come down to
+ * between the close samples of a curve.
+ * <p>
+ * The stage applied to every curve is configured once at startup by the {@code fisiogame.resample} (period in
+ * milliseconds, 0 to keep the sensor timestamps) and {@code fisiogame.decimate} system properties. Immutable.
+ */
+final class Resampler {
+    static final Resampler NONE = new Resampler(0, 1);
+
+    /**
+     * The stage applied when processing curves, from the system properties.
+     */
+    static final Resampler CONFIGURED = new Resampler(Long.getLong("fisiogame.resample", 0),
+            Integer.getInteger("fisiogame.decimate", 1));
+
+    private static final double SLERP_LINEAR = 0.9995;
+
+    final long periodMillis;
+    final int decimation;
+
+    Resampler(long periodMillis, int decimation) {
+        if ((periodMillis < 0) || (decimation < 1))
+            throw new IllegalArgumentException("invalid resampling: " + periodMillis + " ms / " + decimation);
+        this.periodMillis = periodMillis;
+        this.decimation = decimation;
+    }
+
+    boolean isEnabled() {
+        return periodMillis > 0;
+    }
+
+    /**
+     * Whether the points of a curve are spaced the way this stage spaces them, as when it was processed with the
+     * same settings.
+     */
+    boolean isResampled(Curve c) {
+        long step = periodMillis * decimation;
+        for (int i = 1; i < c.size; ++i)
+            if (c.t[i] - c.t[i - 1] != step)
+                return false;
+        return true;
+    }
+
+    /**
+     * Resamples curves of several sensors sampled at the same times, keeping them aligned.
+     */
+    Curve[] apply(Curve[] curves) {
+        if (!isEnabled())
+            return curves;
+        long start = System.nanoTime();
+        Curve[] result = new Curve[curves.length];
+        for (int k = 0; k < curves.length; ++k)
+            result[k] = apply(curves[k]);
+        Metrics.record("resample", start);
+        return result;
+    }
+
+    /**
+     * Resamples curves of quaternion deltas, such as the ones of {@link CurveFile#RELATIVE} files, to the same rate
+     * as {@link #apply(Curve[])}.
+     */
+    Curve[] applyDeltas(Curve[] curves) {
+        if (!isEnabled())
+            return curves;
+        long start = System.nanoTime();
+        Curve[] result = new Curve[curves.length];
+        for (int k = 0; k < curves.length; ++k)
+            result[k] = apply(curves[k], true);
+        Metrics.record("resample", start);
+        return result;
+    }
+
+    /**
+     * Resamples a single curve, returning a new one.
+     */
+    Curve apply(Curve c) {
+        return apply(c, false);
+    }
+
+    private Curve apply(Curve c, boolean deltas) {
+        if (!isEnabled() || (c.size == 0))
+            return c;
+        final Curve out = new Curve((int) ((c.t[c.size - 1] - c.t[0]) / (periodMillis * decimation)) + 1);
+        Stream stream = new Stream(new SampleSink() {
+            @Override
+            public void accept(long timestamp, double w, double x, double y, double z) {
+                out.add(timestamp, w, x, y, z);
+            }
+        }, deltas);
+        for (int i = 0; i < c.size; ++i)
+            stream.accept((long) c.t[i], c.s[i], c.x[i], c.y[i], c.z[i]);
+        if (out.size == 0)
+            stream.flush();
+        return out;
+    }
+
+    /**
+     * Returns a sink that resamples the samples it receives and passes them on to {@code out}.
+     */
+    SampleSink stream(SampleSink out) {
+        return isEnabled() ? new Stream(out, false) : out;
+    }
+
+    /**
+     * Streaming resampler, for live samples. Not thread-safe.
+     */
+    final class Stream implements SampleSink {
+        private final SampleSink out;
+        private final boolean linear;
+        private final double[] q = new double[4];
+        private boolean hasPrevious;
+        private long previousTime, next;
+        private double pw, px, py, pz;
+        // Run of points being averaged.
+        private int count;
+        private long runTime;
+        private double rw, rx, ry, rz;
+
+        /**
+         * @param linear whether the values are quaternion deltas, interpolated and averaged linearly.
+         */
+        Stream(SampleSink out, boolean linear) {
+            this.out = out;
+            this.linear = linear;
+        }
+
+        @Override
+        public void accept(long timestamp, double w, double x, double y, double z) {
+            if (!hasPrevious) {
+                hasPrevious = true;
+                next = timestamp;
+            }
+            while (next <= timestamp) {
+                long span = timestamp - previousTime;
+                if ((next == timestamp) || (span <= 0))
+                    point(next, w, x, y, z);
+                else {
+                    double u = (double) (next - previousTime) / span;
+                    if (linear)
+                        point(next, pw + u * (w - pw), px + u * (x - px), py + u * (y - py), pz + u * (z - pz));
+                    else {
+                        slerp(pw, px, py, pz, w, x, y, z, u, q);
+                        point(next, q[0], q[1], q[2], q[3]);
+                    }
+                }
+                next += periodMillis;
+            }
+            previousTime = timestamp;
+            pw = w;
+            px = x;
+            py = y;
+            pz = z;
+        }
+
+        /**
+         * Emits the incomplete run of points, if any.
+         */
+        void flush() {
+            if (count == 0)
+                return;
+            double n = linear ? count : Math.sqrt(rw * rw + rx * rx + ry * ry + rz * rz);
+            count = 0;
+            out.accept(runTime, rw / n, rx / n, ry / n, rz / n);
+        }
+
+        private void point(long time, double w, double x, double y, double z) {
+            if (decimation == 1) {
+                out.accept(time, w, x, y, z);
+                return;
+            }
+            if (count == 0) {
+                runTime = time;
+                rw = rx = ry = rz = 0;
+            } else if (!linear && (rw * w + rx * x + ry * y + rz * z < 0)) {
+                w = -w;
+                x = -x;
+                y = -y;
+                z = -z;
+            }
+            rw += w;
+            rx += x;
+            ry += y;
+            rz += z;
+            if (++count == decimation)
+                flush();
+        }
+    }
+
+    /**
+     * Spherical linear interpolation from {@code a} to {@code b}, along the shorter arc, into {@code out}.
+     * Nearly parallel quaternions are interpolated linearly and normalized.
+     */
+    static void slerp(double aw, double ax, double ay, double az, double bw, double bx, double by, double bz,
+                      double u, double[] out) {
+        double dot = aw * bw + ax * bx + ay * by + az * bz;
+        if (dot < 0) {
+            dot = -dot;
+            bw = -bw;
+            bx = -bx;
+            by = -by;
+            bz = -bz;
+        }
+        double ka, kb;
+        if (dot > SLERP_LINEAR) {
+            ka = 1 - u;
+            kb = u;
+        } else {
+            double theta = Math.acos(dot), sin = Math.sin(theta);
+            ka = Math.sin((1 - u) * theta) / sin;
+            kb = Math.sin(u * theta) / sin;
+        }
+        double w = ka * aw + kb * bw, x = ka * ax + kb * bx, y = ka * ay + kb * by, z = ka * az + kb * bz;
+        double n = Math.sqrt(w * w + x * x + y * y + z * z);
+        out[0] = w / n;
+        out[1] = x / n;
+        out[2] = y / n;
+        out[3] = z / n;
+    }
+
+    @Override
+    public String toString() {
+        return isEnabled() ? "resample=" + periodMillis + "ms/" + decimation : "raw";
+    }
+}
@@ -0,0 +1,161 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads samples in the JSON format of the IMU driver straight into a {@link SampleSink}, token by token, without
+ * building a {@code List<Sample>} or a tree first.
+ * <p>
+ * Accepts an array of samples or a single one. Each sample is an object with a {@code timestamp} and a
+ * {@code quaternion}, given either as an object with the {@code q0} to {@code q3} components or as an array of four
+ * values; other fields are skipped.
+ */
+final class SampleParser {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private SampleParser() {
+    }
+
+    /**
+     * Parses a JSON string, or a value already decoded by the middleware, and returns the number of samples read.
+     * Lists and maps are walked as they are; other values are converted to JSON first.
+     */
+    static int parse(Object data, SampleSink sink) throws IOException {
+        if ((data instanceof List) || (data instanceof Map))
+            return parseDecoded(data, sink);
+        JsonParser p = (data instanceof String) ? MAPPER.getFactory().createParser((String) data)
+                : MAPPER.treeAsTokens(MAPPER.valueToTree(data));
+        try {
+            return parse(p, sink);
+        } finally {
+            p.close();
+        }
+    }
+
+    static int parse(JsonParser p, SampleSink sink) throws IOException {
+        JsonToken token = p.nextToken();
+        if (token == null)
+            return 0;
+        double[] q = new double[4];
+        if (token == JsonToken.START_OBJECT) {
+            sample(p, sink, q);
+            return 1;
+        }
+        if (token != JsonToken.START_ARRAY)
+            throw new JsonParseException("Expected an array of samples", p.getCurrentLocation());
+        int n = 0;
+        while ((token = p.nextToken()) == JsonToken.START_OBJECT) {
+            sample(p, sink, q);
+            ++n;
+        }
+        if (token != JsonToken.END_ARRAY)
+            throw new JsonParseException("Expected a sample", p.getCurrentLocation());
+        return n;
+    }
+
+    private static int parseDecoded(Object data, SampleSink sink) throws IOException {
+        if (data instanceof Map) {
+            sample((Map<?, ?>) data, sink);
+            return 1;
+        }
+        List<?> list = (List<?>) data;
+        for (int i = 0, n = list.size(); i < n; ++i) {
+            Object sample = list.get(i);
+            if (!(sample instanceof Map))
+                throw new IOException("Expected a sample at index " + i);
+            sample((Map<?, ?>) sample, sink);
+        }
+        return list.size();
+    }
+
+    private static void sample(Map<?, ?> sample, SampleSink sink) throws IOException {
+        Object timestamp = sample.get("timestamp"), quaternion = sample.get("quaternion");
+        if (timestamp == null)
+            throw new IOException("Incomplete sample");
+        double w, x, y, z;
+        if (quaternion instanceof Map) {
+            Map<?, ?> q = (Map<?, ?>) quaternion;
+            w = component(q.get("q0"));
+            x = component(q.get("q1"));
+            y = component(q.get("q2"));
+            z = component(q.get("q3"));
+        } else if ((quaternion instanceof List) && (((List<?>) quaternion).size() == 4)) {
+            List<?> q = (List<?>) quaternion;
+            w = component(q.get(0));
+            x = component(q.get(1));
+            y = component(q.get(2));
+            z = component(q.get(3));
+        } else
+            throw new IOException("Incomplete sample");
+        long t = (timestamp instanceof Number) ? ((Number) timestamp).longValue() : parseLong(timestamp);
+        sink.accept(t, w, x, y, z);
+    }
+
+    /**
+     * A quaternion component, 0 if left out, like the object form of the token parser.
+     */
+    private static double component(Object v) throws IOException {
+        if (v == null)
+            return 0;
+        if (v instanceof Number)
+            return ((Number) v).doubleValue();
+        try {
+            return Double.parseDouble(v.toString());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid quaternion component: " + v);
+        }
+    }
+
+    private static long parseLong(Object v) throws IOException {
+        try {
+            return Long.parseLong(v.toString());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid timestamp: " + v);
+        }
+    }
+
+    private static void sample(JsonParser p, SampleSink sink, double[] q) throws IOException {
+        long timestamp = 0;
+        boolean hasTime = false, hasQuaternion = false;
+        q[0] = q[1] = q[2] = q[3] = 0;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.getCurrentName();
+            JsonToken value = p.nextToken();
+            if (name.equals("timestamp")) {
+                timestamp = p.getValueAsLong();
+                hasTime = true;
+            } else if (name.equals("quaternion") && (value == JsonToken.START_OBJECT)) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String component = p.getCurrentName();
+                    p.nextToken();
+                    int k = component.equals("q0") ? 0 : component.equals("q1") ? 1 : component.equals("q2") ? 2
+                            : component.equals("q3") ? 3 : -1;
+                    if (k >= 0)
+                        q[k] = p.getValueAsDouble();
+                    else
+                        p.skipChildren();
+                }
+                hasQuaternion = true;
+            } else if (name.equals("quaternion") && (value == JsonToken.START_ARRAY)) {
+                int k = 0;
+                while (p.nextToken() != JsonToken.END_ARRAY) {
+                    if (k == 4)
+                        throw new JsonParseException("Quaternion with more than 4 components", p.getCurrentLocation());
+                    q[k++] = p.getValueAsDouble();
+                }
+                hasQuaternion = k == 4;
+            } else
+                p.skipChildren();
+        }
+        if (!hasTime || !hasQuaternion)
+            throw new JsonParseException("Incomplete sample", p.getCurrentLocation());
+        sink.accept(timestamp, q[0], q[1], q[2], q[3]);
+    }
+}
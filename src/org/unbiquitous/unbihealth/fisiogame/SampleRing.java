@@ -0,0 +1,125 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size buffer of the latest samples of a sensor, allocated upfront, with one writer and any number of
+ * {@link Reader}s, none of which ever lock or allocate.
+ * <p>
+ * Samples are appended as they arrive, overwriting the oldest ones once the buffer is full. Each reader keeps its own
+ * position, so consumers such as the matcher, the trimmer, a file writer or a plot follow the same buffer at their own
+ * pace; a reader that falls more than a whole buffer behind skips the samples it lost, which are counted as dropped.
+ * <p>
+ * Each slot holds the timestamp and the four components as raw bits, next to a sequence number: the position of the
+ * sample it holds, or -1 while the writer is replacing it. A reader checks the sequence before and after copying a
+ * slot, so it never returns a sample torn by a concurrent overwrite. Appending must be done from one thread at a time.
+ */
+final class SampleRing implements SampleSink {
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int SLOT = 6;
+
+    /**
+     * Position of a consumer in the buffer. Not thread-safe: each reader must be used by a single thread at a time.
+     */
+    final class Reader {
+        private long position;
+        private volatile long dropped;
+
+        private Reader(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Passes the samples appended since the last call to {@code sink}, in order, and returns how many there were.
+         */
+        int read(SampleSink sink) {
+            long end = written.get();
+            int n = 0;
+            for (; position < end; ++position) {
+                if (end - position > capacity) {
+                    dropped += end - capacity - position;
+                    position = end - capacity;
+                }
+                int i = ((int) position & mask) * SLOT;
+                if (slots.get(i) != position) {
+                    // Being overwritten already.
+                    ++dropped;
+                    continue;
+                }
+                long t = slots.get(i + 1), w = slots.get(i + 2), x = slots.get(i + 3), y = slots.get(i + 4),
+                        z = slots.get(i + 5);
+                if (slots.get(i) != position) {
+                    // Overwritten while being copied.
+                    ++dropped;
+                    continue;
+                }
+                sink.accept(t, Double.longBitsToDouble(w), Double.longBitsToDouble(x), Double.longBitsToDouble(y),
+                        Double.longBitsToDouble(z));
+                ++n;
+            }
+            return n;
+        }
+
+        /**
+         * Samples appended but not read yet, including the ones that will be dropped.
+         */
+        long getLag() {
+            return written.get() - position;
+        }
+
+        long getDropped() {
+            return dropped;
+        }
+    }
+
+    private final int capacity, mask;
+    private final AtomicLongArray slots;
+    // Total number of samples appended; published after the slot is written.
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * @param capacity number of samples kept, rounded up to a power of two.
+     */
+    SampleRing(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        int n = Integer.highestOneBit(capacity);
+        if (n < capacity)
+            n <<= 1;
+        this.capacity = n;
+        mask = n - 1;
+        slots = new AtomicLongArray(n * SLOT);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns a reader that starts with the next sample appended.
+     */
+    Reader reader() {
+        return new Reader(written.get());
+    }
+
+    @Override
+    public void accept(long timestamp, double w, double x, double y, double z) {
+        long position = written.get();
+        int i = ((int) position & mask) * SLOT;
+        // lazySet orders each write after the previous ones, so readers see the slot as busy before it changes.
+        slots.lazySet(i, -1);
+        slots.lazySet(i + 1, timestamp);
+        slots.lazySet(i + 2, Double.doubleToRawLongBits(w));
+        slots.lazySet(i + 3, Double.doubleToRawLongBits(x));
+        slots.lazySet(i + 4, Double.doubleToRawLongBits(y));
+        slots.lazySet(i + 5, Double.doubleToRawLongBits(z));
+        slots.lazySet(i, position);
+        written.lazySet(position + 1);
+    }
+
+    long getWritten() {
+        return written.get();
+    }
+}
@@ -0,0 +1,10 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+/**
+ * Consumer of raw IMU samples, delivered one at a time in timestamp order.
+ * <p>
+ * Components are passed as primitives so live paths don't need to box each sample.
+ */
+interface SampleSink {
+    void accept(long timestamp, double w, double x, double y, double z);
+}
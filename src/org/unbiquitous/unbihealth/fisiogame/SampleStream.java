@@ -0,0 +1,149 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.uos.core.adaptabitilyEngine.UosEventListener;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Notify;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives the samples of an IMU host while it records, as they are taken, instead of all at once when the recording
+ * stops.
+ * <p>
+ * Subscribes to the {@value #EVENT_KEY} events of the IMU driver. Each event carries the sensor id in the
+ * {@link IMUDriver#SENSOR_ID_PARAM_NAME} parameter and a chunk of new samples in the {@value #SAMPLES_PARAM}
+ * parameter, in the same JSON format as a recording. Chunks are parsed by {@link SampleParser} as they arrive, into a
+ * {@link SampleRing} per sensor, so the cost of parsing is spread over the recording and memory doesn't grow with its
+ * length. Chunks of the same sensor are parsed one at a time, as the ring takes a single writer.
+ * <p>
+ * Subscribers are fed on the given executor, never on the thread delivering the events, each one through its own
+ * {@link SampleRing.Reader}, so a slow subscriber only drops its own samples. Bursts of events are coalesced into one
+ * pass over the subscribers, and each subscriber is fed from a single thread at a time.
+ */
+class SampleStream implements UosEventListener {
+    static final String EVENT_KEY = "samples";
+    static final String SAMPLES_PARAM = "samples";
+
+    private static final class Subscriber {
+        final SampleRing.Reader reader;
+        final SampleSink sink;
+
+        Subscriber(SampleRing.Reader reader, SampleSink sink) {
+            this.reader = reader;
+            this.sink = sink;
+        }
+    }
+
+    private final Executor consumer;
+    private final int capacity;
+    private final Map<String, SampleRing> rings = new ConcurrentHashMap<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong events = new AtomicLong(), failures = new AtomicLong();
+
+    /**
+     * @param consumer executor the subscribers are fed on.
+     * @param capacity samples kept per sensor for subscribers that fall behind.
+     */
+    SampleStream(Executor consumer, int capacity) {
+        this.consumer = consumer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Feeds {@code sink} with the samples of a sensor received from now on, in order.
+     */
+    void subscribe(String sensorId, SampleSink sink) {
+        subscribers.add(new Subscriber(ring(sensorId).reader(), sink));
+    }
+
+    /**
+     * Subscribes to the sample events of {@code host}.
+     */
+    void start(UosRuntime runtime, UpDevice host) throws Exception {
+        runtime.register(this, host, IMUDriver.DRIVER_NAME, EVENT_KEY);
+    }
+
+    void stop(UosRuntime runtime) throws Exception {
+        runtime.unregister(this);
+    }
+
+    @Override
+    public void handleEvent(Notify event) {
+        if (!EVENT_KEY.equals(event.getEventKey()))
+            return;
+        Object sensorId = event.getParameter(IMUDriver.SENSOR_ID_PARAM_NAME);
+        Object data = event.getParameter(SAMPLES_PARAM);
+        if (data == null)
+            return;
+        String id = (sensorId == null) ? "" : sensorId.toString();
+        events.incrementAndGet();
+        try {
+            long start = System.nanoTime();
+            SampleRing ring = ring(id);
+            int n;
+            synchronized (ring) {
+                n = SampleParser.parse(data, ring);
+            }
+            Metrics.record("stream.parse", id, start);
+            Metrics.count("stream.samples", id, n);
+        } catch (Exception e) {
+            // The samples parsed before the error are kept; the rest of the chunk is lost.
+            failures.incrementAndGet();
+            System.err.println("Invalid samples from sensor " + id + ": " + e.getMessage());
+        }
+        if (scheduled.compareAndSet(false, true))
+            consumer.execute(this::drain);
+    }
+
+    private SampleRing ring(String sensorId) {
+        SampleRing ring = rings.get(sensorId);
+        if (ring == null) {
+            rings.putIfAbsent(sensorId, new SampleRing(capacity));
+            ring = rings.get(sensorId);
+        }
+        return ring;
+    }
+
+    private void drain() {
+        scheduled.set(false);
+        for (Subscriber s : subscribers) {
+            synchronized (s) {
+                s.reader.read(s.sink);
+            }
+        }
+    }
+
+    /**
+     * Number of sample events received, so far.
+     */
+    long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * Samples lost by subscribers that fell more than a whole buffer behind, over all of them.
+     */
+    long getDropped() {
+        long dropped = 0;
+        for (Subscriber s : subscribers)
+            dropped += s.reader.getDropped();
+        return dropped;
+    }
+
+    @Override
+    public String toString() {
+        long samples = 0;
+        for (SampleRing r : rings.values())
+            samples += r.getWritten();
+        return "stream: " + events.get() + " events, " + samples + " samples, " + getDropped() + " dropped, "
+                + failures.get() + " invalid";
+    }
+}
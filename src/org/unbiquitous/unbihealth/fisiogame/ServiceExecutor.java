@@ -0,0 +1,111 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
+import org.unbiquitous.uos.core.messageEngine.messages.Response;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Issues uOS service calls asynchronously on a fixed pool of threads.
+ * <p>
+ * The number of calls queued or running at once is limited; calls beyond the limit fail right away with a
+ * {@link RejectedExecutionException} instead of piling up. Each call fails with a {@link TimeoutException} if no
+ * response arrives in time, and cancelling the returned future (or timing out) interrupts the call. A call counts
+ * towards the limit until its thread is actually done with it, so calls that ignore the interrupt can't pile up
+ * beyond the limit either.
+ */
+class ServiceExecutor {
+    /**
+     * Performs the actual blocking call, usually through the uOS gateway.
+     */
+    interface Invoker {
+        Response call(UpDevice device, Call call) throws Exception;
+    }
+
+    private final Invoker invoker;
+    private final long timeoutMillis;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ExecutorService pool;
+    private final ScheduledExecutorService timer;
+
+    ServiceExecutor(Invoker invoker, int threads, int maxInFlight, long timeoutMillis) {
+        this.invoker = invoker;
+        this.timeoutMillis = timeoutMillis;
+        this.maxInFlight = maxInFlight;
+        inFlight = new Semaphore(maxInFlight);
+        pool = Executors.newFixedThreadPool(threads, Threads.daemon("service-call-"));
+        timer = Executors.newSingleThreadScheduledExecutor(Threads.daemon("service-timeout-"));
+    }
+
+    CompletableFuture<Response> call(UpDevice device, Call call) {
+        final CompletableFuture<Response> result = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        if (!inFlight.tryAcquire()) {
+            Metrics.count("service.rejected");
+            result.completeExceptionally(new RejectedExecutionException("Too many service calls in flight."));
+            return result;
+        }
+
+        // Claimed by whoever releases the permit: the call once it ran, or its cancellation if it never started.
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final Future<?> task;
+        try {
+            task = pool.submit(() -> {
+                if (!claimed.compareAndSet(false, true))
+                    return;
+                try {
+                    result.complete(invoker.call(device, call));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Metrics.count("service.rejected");
+            inFlight.release();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        final ScheduledFuture<?> timeout = timer.schedule(() -> {
+            result.completeExceptionally(new TimeoutException("No response after " + timeoutMillis + "ms."));
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        result.whenComplete((r, t) -> {
+            timeout.cancel(false);
+            Metrics.record("service.call", start);
+            if (t instanceof TimeoutException)
+                Metrics.count("service.timeout");
+            else if (t != null)
+                Metrics.count("service.failed");
+            // Completed from outside the pool thread: the call is still running, so interrupt it. A call that
+            // never started gives its permit back here.
+            if ((result.isCancelled() || (t instanceof TimeoutException)) && task.cancel(true)
+                    && claimed.compareAndSet(false, true))
+                inFlight.release();
+        });
+        return result;
+    }
+
+    int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,259 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+import org.unbiquitous.unbihealth.imu.IMUDriver;
+import org.unbiquitous.unbihealth.imu.Sample;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
+import org.unbiquitous.uos.core.messageEngine.messages.Response;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.unbiquitous.unbihealth.fisiogame.Curves.MATCH_THRESHOLD;
+
+/**
+ * One station of the headless controller: an IMU host and its sensors, a template library and the game device that
+ * is notified of the matches. Records the sensors in fixed windows and classifies each window against the templates,
+ * or, when splitting repetitions, records continuously and classifies each repetition as soon as it completes.
+ * <p>
+ * Everything that belongs to a session, from its templates to its notify pipeline and pruning statistics, is kept
+ * here, so several sessions can run in the same process sharing only the {@link UosRuntime} and the executor the
+ * comparisons run on. Configured with the options described in {@link HeadlessController}.
+ */
+class Session {
+    private final String name;
+    private final Settings settings;
+    private final UosRuntime runtime;
+    private final TemplateLoader templateLoader;
+    private final NotifyPipeline notifies;
+    private final DtwCascade cascade = new DtwCascade(MATCH_THRESHOLD,
+            DtwCascade.Engine.valueOf(System.getProperty("fisiogame.dtw", "fastdtw").toUpperCase()));
+    private final Classifier classifier;
+    private final Map<String, QuaternionDistance> kernels = new HashMap<>();
+
+    private Map<String, TimeSeries> templates;
+    private TemplateIndex index;
+    private volatile boolean stopped;
+
+    /**
+     * Session options, parsed and checked upfront so that a bad configuration fails before anything starts.
+     */
+    static final class Settings {
+        final String host, sensors, templates, game;
+        final long windowMillis;
+        final int repetitions;
+        final boolean split;
+        final QuaternionDistance distance;
+
+        Settings(Properties config) {
+            for (String key : new String[]{"host", "templates"}) {
+                if (config.getProperty(key) == null)
+                    throw new IllegalArgumentException("Missing option: " + key);
+            }
+            host = config.getProperty("host");
+            sensors = config.getProperty("sensors", "all").trim();
+            templates = config.getProperty("templates");
+            game = config.getProperty("game", UosRuntime.DEFAULT_GAME_ADDRESS);
+            windowMillis = (long) (Double.parseDouble(config.getProperty("window", "3")) * 1000);
+            repetitions = Integer.parseInt(config.getProperty("repetitions", "0"));
+            split = Boolean.parseBoolean(config.getProperty("split", "false"));
+            try {
+                distance = QuaternionDistance.of(config.getProperty("distance", "chebyshev"));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid distance: " + config.getProperty("distance"));
+            }
+        }
+    }
+
+    /**
+     * @param matching executor the comparisons run on.
+     * @param threads  number of comparisons submitted to it at once.
+     */
+    Session(String name, Settings settings, UosRuntime runtime, TemplateLoader templateLoader, Executor matching,
+            int threads) {
+        this.name = name;
+        this.settings = settings;
+        this.runtime = runtime;
+        this.templateLoader = templateLoader;
+        notifies = runtime.newNotifies(settings.game);
+        classifier = new Classifier(matching, threads, cascade);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Loads the templates, then records and classifies windows, or repetitions, until the configured number of them
+     * is done or the session is stopped.
+     */
+    void run() throws Exception {
+        templates = loadTemplates();
+        if (templates.isEmpty())
+            throw new IllegalStateException("No templates loaded.");
+        for (String id : templates.keySet())
+            kernels.put(id, settings.distance);
+        index = new TemplateIndex(templates, kernels);
+
+        UpDevice host = new UpDevice("imu").addNetworkInterface(settings.host, "Ethernet:TCP");
+        List<String> sensorIds = sensorIds(host);
+        log("Recording sensors " + sensorIds);
+
+        if (settings.split && recordLive(host, sensorIds))
+            return;
+        for (int i = 0; !stopped && ((settings.repetitions == 0) || (i < settings.repetitions)); ++i) {
+            try {
+                record(host, sensorIds);
+            } catch (ExecutionException e) {
+                log("Recording failed: " + e.getCause());
+            } catch (RuntimeException e) {
+                log("Recording failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Makes {@link #run()} return after the current window.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    private Map<String, TimeSeries> loadTemplates() throws IOException, InterruptedException, ExecutionException {
+        TemplateLoader.Result result = templateLoader.loadDirectory(Paths.get(settings.templates)).get();
+        for (Map.Entry<String, Throwable> e : result.failures.entrySet())
+            log("Failed to load file '" + e.getKey() + "': " + e.getValue());
+        log("Loaded " + result.curves.size() + " templates (" + result.cacheHits + " cached).");
+        return result.curves;
+    }
+
+    private List<String> sensorIds(UpDevice host) throws Exception {
+        if (!settings.sensors.equalsIgnoreCase("all"))
+            return Arrays.asList(settings.sensors.split("\\s*,\\s*"));
+        Response r = runtime.callService(host, new Call(IMUDriver.DRIVER_NAME, IMUDriver.LIST_IDS_NAME)).get();
+        if (r.getError() != null)
+            throw new IllegalStateException(r.getError());
+        return IMUDriver.extractIdList(r);
+    }
+
+    /**
+     * Records until stopped, splitting the samples streamed by the host into repetitions as they come. Returns
+     * {@code false} if the host sends no sample events within the first window, so windows are recorded instead.
+     * <p>
+     * Repetitions are classified on the matching executor, so the stream consumer keeps draining the samples while
+     * the comparisons run.
+     */
+    private boolean recordLive(UpDevice host, List<String> sensorIds) throws Exception {
+        ExecutorService consumer = Executors.newSingleThreadExecutor(Threads.daemon("session-stream-"));
+        SampleStream stream = new SampleStream(consumer, SampleRing.DEFAULT_CAPACITY);
+        final AtomicInteger done = new AtomicInteger();
+        final Set<CompletableFuture<?>> pending = ConcurrentHashMap.newKeySet();
+        final RepetitionStream reps = new RepetitionStream(stream, sensorIds, templates, kernels, MATCH_THRESHOLD,
+                RepetitionSegmenter.DEFAULT_REST_MILLIS, (r, curve) -> {
+            final CompletableFuture<Void> f = classifier.classifyAsync(curve, index, 1).handle((matches, t) -> {
+                log(r.toString());
+                if (t != null)
+                    log("Classification failed: " + ((t instanceof CompletionException) ? t.getCause() : t));
+                else
+                    report(matches);
+                done.incrementAndGet();
+                return null;
+            });
+            pending.add(f);
+            f.thenRun(() -> pending.remove(f));
+        });
+        RecordingSession session = new RecordingSession(runtime::callService, host, sensorIds);
+        stream.start(runtime, host);
+        try {
+            session.start().get();
+            Thread.sleep(settings.windowMillis);
+            if (stream.getEvents() == 0) {
+                log("No samples streamed by the host; recording in windows.");
+                return false;
+            }
+            while (!stopped && ((settings.repetitions == 0) || (done.get() < settings.repetitions)))
+                Thread.sleep(settings.windowMillis);
+            return true;
+        } finally {
+            stream.stop(runtime);
+            try {
+                session.stop().get();
+            } catch (ExecutionException e) {
+                log("Failed to stop recording: " + e.getCause());
+            }
+            // Runs after the samples already received.
+            consumer.execute(reps::finish);
+            consumer.shutdown();
+            consumer.awaitTermination(1, TimeUnit.MINUTES);
+            try {
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+            } catch (ExecutionException | TimeoutException e) {
+                log("Repetitions left unclassified: " + pending.size());
+            }
+            log(stream.toString());
+        }
+    }
+
+    private void record(UpDevice host, List<String> sensorIds) throws InterruptedException, ExecutionException {
+        RecordingSession session = new RecordingSession(runtime::callService, host, sensorIds);
+        session.start().get();
+        Thread.sleep(settings.windowMillis);
+        Map<String, List<Sample>> recordings = session.stop().get();
+
+        if (settings.split) {
+            Map<RepetitionSegmenter.Repetition, TimeSeries> reps = RepetitionSegmenter.curves(recordings, templates,
+                    kernels, MATCH_THRESHOLD, RepetitionSegmenter.DEFAULT_REST_MILLIS);
+            log(reps.size() + " repetitions");
+            for (TimeSeries curve : reps.values())
+                classify(curve);
+        } else
+            classify(Curves.fuse(new ArrayList<>(recordings.values())));
+    }
+
+    private void classify(TimeSeries curve) throws InterruptedException {
+        report(classifier.classify(curve, index, 1));
+    }
+
+    private void report(List<Classifier.Match> matches) {
+        if (matches.isEmpty()) {
+            log("No match (compared " + classifier.getLastCompared() + " templates)");
+            return;
+        }
+        Classifier.Match best = matches.get(0);
+        log(best.toString());
+        if (best.distance < MATCH_THRESHOLD)
+            UosRuntime.sendPunch(notifies, best.distance);
+    }
+
+    private void log(String message) {
+        System.out.println(name.isEmpty() ? message : "[" + name + "] " + message);
+    }
+
+    void shutdown() {
+        stop();
+        classifier.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return (name.isEmpty() ? "" : "[" + name + "] ") + cascade + "\n" + notifies;
+    }
+}
@@ -0,0 +1,137 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs several independent {@link Session}s in one process, one per station, each with its own IMU host, sensors,
+ * templates and game device.
+ * <p>
+ * Usage: {@code SessionManager config}, where the configuration is a properties file like:
+ * <pre>
+ * port=8300
+ * threads=8
+ * sessions=station1,station2
+ * station1.host=192.168.0.11
+ * station1.templates=/data/templates/shoulder
+ * station1.game=192.168.0.21:8302
+ * station2.host=192.168.0.12
+ * ...
+ * </pre>
+ * {@code port} is the local uOS port (default: 8300), and {@code threads} the number of threads comparing curves,
+ * shared by all sessions (default: one per processor). Each session takes the options of {@link HeadlessController}
+ * prefixed by its name; options given without a prefix apply to every session that doesn't override them.
+ * <p>
+ * Sessions share the uOS gateway, the template cache and a {@link FairExecutor} for the comparisons, where each
+ * session has its own lane, so a station with a large template library doesn't starve the others. Each session
+ * records on its own thread, as it mostly waits for the sensors.
+ */
+public class SessionManager {
+    private final UosRuntime runtime = new UosRuntime();
+    private final TemplateLoader templateLoader = new TemplateLoader(Runtime.getRuntime().availableProcessors(),
+            new CurveCache(CurveCache.defaultDirectory()));
+    private final FairExecutor matching;
+    private final List<Session> sessions = new ArrayList<>();
+    private final int port;
+
+    SessionManager(Properties config) {
+        port = Integer.parseInt(config.getProperty("port", Integer.toString(UosRuntime.DEFAULT_PORT)));
+        int threads = Integer.parseInt(config.getProperty("threads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        String names = config.getProperty("sessions", "").trim();
+        if (names.isEmpty())
+            throw new IllegalArgumentException("Missing option: sessions");
+
+        List<Session.Settings> settings = new ArrayList<>();
+        String[] split = names.split("\\s*,\\s*");
+        for (String name : split)
+            settings.add(new Session.Settings(sessionConfig(config, name)));
+        matching = new FairExecutor(threads, "classifier-");
+        for (int i = 0; i < split.length; ++i)
+            sessions.add(new Session(split[i], settings.get(i), runtime, templateLoader,
+                    matching.lane(split[i]), threads));
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        final SessionManager manager;
+        try {
+            if (args.length != 1)
+                throw new IllegalArgumentException("Usage: SessionManager config");
+            Properties config = new Properties();
+            try (InputStream in = Files.newInputStream(Paths.get(args[0]))) {
+                config.load(in);
+            }
+            manager = new SessionManager(config);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        Metrics.init();
+        Runtime.getRuntime().addShutdownHook(new Thread(manager::shutdown));
+        try {
+            manager.run();
+            System.exit(0);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Options of a session: the ones prefixed by its name, over the ones without a prefix.
+     */
+    static Properties sessionConfig(Properties config, String name) {
+        Properties session = new Properties();
+        String prefix = name + ".";
+        for (String key : config.stringPropertyNames())
+            if (key.indexOf('.') < 0)
+                session.setProperty(key, config.getProperty(key));
+        for (String key : config.stringPropertyNames())
+            if (key.startsWith(prefix))
+                session.setProperty(key.substring(prefix.length()), config.getProperty(key));
+        return session;
+    }
+
+    /**
+     * Starts every session on its own thread and waits for all of them to finish. A session that fails is reported
+     * and doesn't stop the others.
+     */
+    void run() throws InterruptedException {
+        runtime.start(port);
+        List<Thread> threads = new ArrayList<>(sessions.size());
+        for (final Session s : sessions) {
+            Thread t = new Thread(() -> {
+                try {
+                    s.run();
+                } catch (Exception e) {
+                    System.err.println("[" + s.getName() + "] Session failed:");
+                    e.printStackTrace();
+                }
+            }, "session-" + s.getName());
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads)
+            t.join();
+    }
+
+    void shutdown() {
+        for (Session s : sessions)
+            s.shutdown();
+        matching.shutdown();
+        templateLoader.shutdown();
+        runtime.stop();
+        for (Session s : sessions)
+            System.out.println(s);
+        System.out.print(Metrics.report());
+    }
+}
@@ -0,0 +1,211 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches a live sample stream against a set of reference curves, as the samples arrive.
+ * <p>
+ * Each reference runs a subsequence DTW (free start and end on the stream side), following SPRING: once the cost of
+ * aligning the whole reference with a recent stretch of samples drops below the threshold, the best such alignment
+ * is held, and reported as soon as no partial alignment overlapping it can still beat it. This keeps a matching
+ * stretch from being reported as soon as its first part crosses the threshold, and reports each occurrence once.
+ * Samples are made relative to the first one received after a {@link #reset()}, the same way
+ * {@link Curves#processCurve(List)} does. The cost uses each reference's {@link QuaternionDistance}, by default the
+ * same Chebyshev distance as {@link Curves#WORST_DIST}, so the distances are comparable to the ones reported by
+ * FastDTW; references with a sign-invariant distance are skipped while the base isn't tared, as those distances
+ * assume it is. Since the stream side is free to warp, alignments that squeeze the reference into a stretch shorter
+ * than {@link #MIN_SPAN} of its duration are not reported.
+ * <p>
+ * Not thread-safe: samples must be fed from a single thread.
+ */
+class StreamingMatcher implements SampleSink {
+    interface Listener {
+        void onMatch(String curveId, double distance, long startTime, long endTime);
+    }
+
+    private static final double MIN_SPAN = 0.5;
+
+    private final double threshold;
+    private final Listener listener;
+    private final Track[] tracks;
+
+    private boolean hasBase = false, tared;
+    private double bw, bx, by, bz;
+
+    StreamingMatcher(Map<String, TimeSeries> curves, double threshold, Listener listener) {
+        this(curves, Collections.<String, QuaternionDistance>emptyMap(), threshold, listener);
+    }
+
+    /**
+     * @param kernels point distance of each curve; curves left out use {@link QuaternionDistance#CHEBYSHEV}.
+     */
+    StreamingMatcher(Map<String, TimeSeries> curves, Map<String, QuaternionDistance> kernels, double threshold,
+                     Listener listener) {
+        this.threshold = threshold;
+        this.listener = listener;
+        List<Track> list = new ArrayList<>(curves.size());
+        // Fused multi-sensor curves need samples from every sensor at once, so they're left out.
+        for (Map.Entry<String, TimeSeries> e : curves.entrySet())
+            if ((e.getValue().size() > 0) && (e.getValue().numOfDimensions() == 4)) {
+                QuaternionDistance kernel = kernels.get(e.getKey());
+                if (kernel == null)
+                    kernel = QuaternionDistance.CHEBYSHEV;
+                list.add(new Track(e.getKey(), e.getValue(), kernel));
+            }
+        tracks = list.toArray(new Track[list.size()]);
+    }
+
+    /**
+     * Reports the best alignment held by each reference, settled or not, and then resets. Used where the stream is
+     * cut, as no later sample can extend the alignments that would have beaten them.
+     */
+    void flush() {
+        for (Track t : tracks) {
+            if (t.bestCost < threshold) {
+                double best = t.bestCost;
+                long start = t.bestStart, end = t.bestEnd;
+                t.bestCost = Double.POSITIVE_INFINITY;
+                listener.onMatch(t.id, best, start, end);
+            }
+        }
+        reset();
+    }
+
+    /**
+     * Forgets the current base sample and any partial alignments.
+     */
+    void reset() {
+        hasBase = false;
+        for (Track t : tracks)
+            t.reset();
+    }
+
+    @Override
+    public void accept(long timestamp, double w, double x, double y, double z) {
+        if (!hasBase) {
+            bw = w;
+            bx = x;
+            by = y;
+            bz = z;
+            hasBase = true;
+            tared = QuaternionDistance.isTared(w, x, y, z);
+            if (!tared)
+                Metrics.count("match.untared");
+        }
+        double s = w - bw, dx = x - bx, dy = y - by, dz = z - bz;
+        for (Track t : tracks) {
+            if (!tared && t.kernel.isSignInvariant())
+                continue;
+            double distance = t.push(timestamp, s, dx, dy, dz);
+            if ((distance < threshold) && (distance < t.bestCost) && (timestamp - t.matchStart >= t.minSpan)) {
+                t.bestCost = distance;
+                t.bestStart = t.matchStart;
+                t.bestEnd = timestamp;
+            }
+            if ((t.bestCost < threshold) && t.settled()) {
+                double best = t.bestCost;
+                long start = t.bestStart, end = t.bestEnd;
+                t.discardUpTo(end);
+                listener.onMatch(t.id, best, start, end);
+            }
+        }
+    }
+
+    /**
+     * Incremental alignment state for one reference curve. Only the last column of the cost matrix is kept, along
+     * with the stream timestamp where each partial alignment started.
+     */
+    private static final class Track {
+        final String id;
+        final int m;
+        final Curve ref;
+        final QuaternionDistance kernel;
+        final double minSpan;
+        final double[] dist;
+        double[] cost, prevCost;
+        long[] start, prevStart;
+        long matchStart;
+        // Best complete alignment not reported yet.
+        double bestCost;
+        long bestStart, bestEnd;
+
+        Track(String id, TimeSeries ref, QuaternionDistance kernel) {
+            this.id = id;
+            this.kernel = kernel;
+            this.ref = Curve.of(ref);
+            m = ref.size();
+            minSpan = MIN_SPAN * (ref.getTimeAtNthPoint(m - 1) - ref.getTimeAtNthPoint(0));
+            dist = new double[m];
+            cost = new double[m];
+            prevCost = new double[m];
+            start = new long[m];
+            prevStart = new long[m];
+            reset();
+        }
+
+        void reset() {
+            Arrays.fill(cost, Double.POSITIVE_INFINITY);
+            bestCost = Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Whether no partial alignment overlapping the best one can still end with a lower cost.
+         */
+        boolean settled() {
+            for (int i = 0; i < m; ++i)
+                if ((cost[i] < bestCost) && (start[i] <= bestEnd))
+                    return false;
+            return true;
+        }
+
+        /**
+         * Drops the best alignment and every partial alignment overlapping it, once it has been reported.
+         */
+        void discardUpTo(long end) {
+            for (int i = 0; i < m; ++i)
+                if (start[i] <= end)
+                    cost[i] = Double.POSITIVE_INFINITY;
+            bestCost = Double.POSITIVE_INFINITY;
+        }
+
+        /**
+         * Aligns one more stream sample and returns the cost of the best alignment of the whole reference ending at
+         * it.
+         */
+        double push(long t, double s, double x, double y, double z) {
+            double[] c = prevCost;
+            prevCost = cost;
+            cost = c;
+            long[] st = prevStart;
+            prevStart = start;
+            start = st;
+
+            kernel.row(s, x, y, z, ref, 0, m - 1, dist, false);
+            // A match may start at any sample, so the first row never carries cost over.
+            cost[0] = dist[0];
+            start[0] = t;
+            for (int i = 1; i < m; ++i) {
+                double best = prevCost[i - 1];
+                long bestStart = prevStart[i - 1];
+                if (prevCost[i] < best) {
+                    best = prevCost[i];
+                    bestStart = prevStart[i];
+                }
+                if (cost[i - 1] < best) {
+                    best = cost[i - 1];
+                    bestStart = start[i - 1];
+                }
+                cost[i] = best + dist[i];
+                start[i] = bestStart;
+            }
+            matchStart = start[m - 1];
+            return cost[m - 1];
+        }
+    }
+}
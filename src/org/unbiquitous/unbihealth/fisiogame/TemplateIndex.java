@@ -0,0 +1,195 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed features of a set of reference curves, used to find the few worth comparing to a query with full DTW.
+ * <p>
+ * Every template is summarized at a coarse resolution: its points are split into up to {@link #SEGMENTS} consecutive
+ * segments, and each segment keeps the bounding box of its points, along with the global bounding box and end points
+ * kept by {@link DtwCascade.Bounds}. For a query, each template gets a lower bound of its DTW distance that costs
+ * {@code O(SEGMENTS)} to compute:
+ * <ul>
+ * <li>LB_Kim on the end points.</li>
+ * <li>A coarse LB_Keogh: every point of a segment is at least as far from the other curve's bounding box as the
+ * segment's own box is, so the number of points of each segment times that box distance, summed over the segments,
+ * bounds the cost. It is taken in both directions.</li>
+ * </ul>
+ * Each template is compared with its own {@link QuaternionDistance}, and the bounds of templates with a sign-invariant
+ * one also consider each sensor's box with the opposite sign, reduced by {@link DtwCascade#slack} for the ones that
+ * normalize the points.
+ * {@link #candidates} returns the templates whose bound is under the threshold, lowest bound first, so the search can
+ * stop at the first candidate whose bound is no better than the best distances found so far. Immutable and safe to
+ * share between threads; build a new one when the templates change.
+ */
+final class TemplateIndex {
+    static final int SEGMENTS = 16;
+
+    /**
+     * A template and its lower bound for the current query.
+     */
+    static final class Candidate implements Comparable<Candidate> {
+        final String id;
+        final DtwCascade.Bounds bounds;
+        final QuaternionDistance kernel;
+        final double bound;
+
+        Candidate(String id, DtwCascade.Bounds bounds, QuaternionDistance kernel, double bound) {
+            this.id = id;
+            this.bounds = bounds;
+            this.kernel = kernel;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(Candidate o) {
+            return Double.compare(bound, o.bound);
+        }
+    }
+
+    /**
+     * Segment bounding boxes of a curve: {@code count[j]} points in segment {@code j}, with the box of dimension
+     * {@code d} at {@code min[j * dims + d]} and {@code max[j * dims + d]}.
+     */
+    static final class Envelope {
+        final int segments, dims;
+        final int[] count;
+        final double[] min, max;
+        private final DtwCascade.Bounds bounds;
+
+        Envelope(DtwCascade.Bounds b) {
+            bounds = b;
+            int n = b.size;
+            segments = Math.min(SEGMENTS, n);
+            dims = 4 * b.curves.length;
+            count = new int[segments];
+            min = new double[segments * dims];
+            max = new double[segments * dims];
+            for (int j = 0; j < segments; ++j) {
+                int from = (int) ((long) j * n / segments), to = (int) ((long) (j + 1) * n / segments);
+                count[j] = to - from;
+                for (int k = 0; k < b.curves.length; ++k) {
+                    Curve c = b.curves[k];
+                    box(j * dims + 4 * k, c.s, from, to);
+                    box(j * dims + 4 * k + 1, c.x, from, to);
+                    box(j * dims + 4 * k + 2, c.y, from, to);
+                    box(j * dims + 4 * k + 3, c.z, from, to);
+                }
+            }
+        }
+
+        private void box(int i, double[] v, int from, int to) {
+            double lo = v[from], hi = v[from];
+            for (int p = from + 1; p < to; ++p) {
+                if (v[p] < lo)
+                    lo = v[p];
+                else if (v[p] > hi)
+                    hi = v[p];
+            }
+            min[i] = lo;
+            max[i] = hi;
+        }
+
+        /**
+         * Lower bound of the cost of matching every point of this curve to some point within the bounding box of
+         * {@code other}.
+         */
+        double lbKeogh(DtwCascade.Bounds other, QuaternionDistance kernel) {
+            final boolean flip = kernel.isSignInvariant();
+            double sum = 0;
+            for (int j = 0, i = 0; j < segments; ++j) {
+                double worst = 0;
+                for (int d = 0; d < dims; d += 4, i += 4) {
+                    final double slack = DtwCascade.slack(bounds, other, d / 4, kernel);
+                    double same = 0;
+                    for (int e = 0; e < 4; ++e)
+                        same = Math.max(same, Math.max(min[i + e] - other.max[d + e], other.min[d + e] - max[i + e]));
+                    if (flip && (same - slack > worst)) {
+                        // The box of -q as a delta: s in [-max - 2, -min - 2], the others in [-max, -min].
+                        double flipped = Math.max(-max[i] - 2 - other.max[d], other.min[d] + min[i] + 2);
+                        for (int e = 1; e < 4; ++e)
+                            flipped = Math.max(flipped,
+                                    Math.max(-max[i + e] - other.max[d + e], other.min[d + e] + min[i + e]));
+                        same = Math.min(same, flipped);
+                    }
+                    if (same - slack > worst)
+                        worst = same - slack;
+                }
+                sum += count[j] * worst;
+            }
+            return sum;
+        }
+    }
+
+    private final String[] ids;
+    private final DtwCascade.Bounds[] bounds;
+    private final QuaternionDistance[] kernels;
+    private final Envelope[] envelopes;
+
+    TemplateIndex(Map<String, TimeSeries> templates) {
+        this(templates, Collections.<String, QuaternionDistance>emptyMap());
+    }
+
+    /**
+     * @param kernels point distance of each template; templates left out use {@link QuaternionDistance#CHEBYSHEV}.
+     */
+    TemplateIndex(Map<String, TimeSeries> templates, Map<String, QuaternionDistance> kernels) {
+        List<String> list = new ArrayList<>();
+        for (Map.Entry<String, TimeSeries> e : templates.entrySet())
+            if (e.getValue().size() > 0)
+                list.add(e.getKey());
+        int n = list.size();
+        ids = list.toArray(new String[n]);
+        bounds = new DtwCascade.Bounds[n];
+        this.kernels = new QuaternionDistance[n];
+        envelopes = new Envelope[n];
+        for (int i = 0; i < n; ++i) {
+            bounds[i] = DtwCascade.bounds(templates.get(ids[i]));
+            QuaternionDistance k = kernels.get(ids[i]);
+            this.kernels[i] = (k == null) ? QuaternionDistance.CHEBYSHEV : k;
+            envelopes[i] = new Envelope(bounds[i]);
+        }
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Point distance used for a template, {@link QuaternionDistance#CHEBYSHEV} if it isn't indexed.
+     */
+    QuaternionDistance kernel(String id) {
+        for (int i = 0; i < ids.length; ++i)
+            if (ids[i].equals(id))
+                return kernels[i];
+        return QuaternionDistance.CHEBYSHEV;
+    }
+
+    /**
+     * Returns the templates with the same number of sensors as the query whose lower bound is under
+     * {@code threshold}, lowest bound first.
+     */
+    List<Candidate> candidates(DtwCascade.Bounds query, double threshold) {
+        Envelope q = new Envelope(query);
+        List<Candidate> result = new ArrayList<>();
+        for (int i = 0; i < ids.length; ++i) {
+            DtwCascade.Bounds b = bounds[i];
+            if (b.curves.length != query.curves.length)
+                continue;
+            double bound = DtwCascade.lbKim(b, query, kernels[i]);
+            if (bound < threshold)
+                bound = Math.max(bound, q.lbKeogh(b, kernels[i]));
+            if (bound < threshold)
+                bound = Math.max(bound, envelopes[i].lbKeogh(query, kernels[i]));
+            if (bound < threshold)
+                result.add(new Candidate(ids[i], b, kernels[i], bound));
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
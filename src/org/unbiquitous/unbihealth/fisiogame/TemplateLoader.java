@@ -0,0 +1,118 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import com.fastdtw.timeseries.TimeSeries;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads and processes reference curve files in parallel, in the background, going through a {@link CurveCache} so
+ * that files already seen are not parsed and trimmed again.
+ */
+class TemplateLoader {
+    /**
+     * Outcome of loading a batch of files, in the order they were requested.
+     */
+    static final class Result {
+        final Map<String, TimeSeries> curves = new LinkedHashMap<>();
+        final Map<String, Throwable> failures = new LinkedHashMap<>();
+        int cacheHits;
+    }
+
+    private final ExecutorService pool;
+    private final CurveCache cache;
+
+    TemplateLoader(int threads, CurveCache cache) {
+        this.cache = cache;
+        pool = Executors.newFixedThreadPool(threads, Threads.daemon("template-loader-"));
+    }
+
+    CompletableFuture<Result> load(List<String> paths) {
+        final List<CompletableFuture<TimeSeries>> loads = new ArrayList<>(paths.size());
+        final boolean[] hits = new boolean[paths.size()];
+        for (int i = 0; i < paths.size(); ++i) {
+            final String path = paths.get(i);
+            final int index = i;
+            loads.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    Path p = Paths.get(path);
+                    TimeSeries curve = (cache == null) ? null : cache.get(p);
+                    if (curve != null) {
+                        hits[index] = true;
+                        return curve;
+                    }
+                    long start = System.nanoTime();
+                    curve = process(p);
+                    Metrics.record("template.load", start);
+                    if (cache != null)
+                        cache.put(p, curve);
+                    return curve;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, pool));
+        }
+
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[loads.size()])).handle((v, t) -> {
+            Result result = new Result();
+            for (int i = 0; i < paths.size(); ++i) {
+                CompletableFuture<TimeSeries> f = loads.get(i);
+                try {
+                    result.curves.put(paths.get(i), f.join());
+                    if (hits[i])
+                        ++result.cacheHits;
+                } catch (CompletionException e) {
+                    Throwable cause = e.getCause();
+                    result.failures.put(paths.get(i),
+                            (cause instanceof UncheckedIOException) ? cause.getCause() : cause);
+                }
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Loads every curve file of a directory, {@code *.json} or {@code *.fgc}. A recording saved in both formats, such
+     * as {@code walk.json} and {@code walk.fgc}, is loaded once, from the binary file.
+     */
+    CompletableFuture<Result> loadDirectory(Path dir) throws IOException {
+        List<String> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.{json,fgc}")) {
+            for (Path p : files) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(".json") && Files.exists(
+                        p.resolveSibling(name.substring(0, name.length() - 5) + CurveFile.EXTENSION)))
+                    continue;
+                paths.add(p.toString());
+            }
+        }
+        return load(paths);
+    }
+
+    /**
+     * Reads and processes a curve file, without going through the cache.
+     */
+    static TimeSeries process(Path path) throws IOException {
+        if (path.getFileName().toString().toLowerCase().endsWith(CurveFile.EXTENSION))
+            return CurveFile.read(path);
+        String json = new String(Files.readAllBytes(path), Charset.forName("UTF-8"));
+        return Curves.fuse(new ArrayList<>(Curves.parseRecordings(json).values()));
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+}
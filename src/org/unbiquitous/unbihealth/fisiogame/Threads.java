@@ -0,0 +1,22 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class Threads {
+    private Threads() {
+    }
+
+    /**
+     * Creates daemon threads named with the given prefix and a sequence number, so that worker pools never keep the
+     * application alive.
+     */
+    static ThreadFactory daemon(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return (r) -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
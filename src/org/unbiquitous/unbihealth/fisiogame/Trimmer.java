@@ -0,0 +1,157 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+/**
+ * Trims a stream of samples to the span where the sensor is moving, one sample at a time, with the same rules as
+ * {@link Curves#processCurve(java.util.List)}: motion starts at the first sample that differs from the base (the
+ * first sample seen) by more than {@link Curves#CURVE_THRESHOLD} in any component, and ends at the last sample that
+ * differs that much from the final one. Values are quaternion deltas from the base, and times are relative to the
+ * start of the motion.
+ * <p>
+ * Samples before the motion starts are not kept. When {@code restMillis} is positive, a segment is also emitted as
+ * soon as the sensor has stayed still for that long, and the position it stopped at becomes the base for the next
+ * segment, so a continuous recording can be split into repetitions. Otherwise the segment is only produced by
+ * {@link #finish()}.
+ * <p>
+ * Samples are stored in a reusable {@link Curve}, so nothing is allocated per sample once it has grown to the length
+ * of a segment. Not thread-safe.
+ */
+final class Trimmer implements SampleSink {
+    interface Listener {
+        /**
+         * @param segment   only valid until this method returns.
+         * @param startTime timestamp of the first sample of the segment.
+         * @param endTime   timestamp of the last sample of the segment.
+         */
+        void onSegment(Curve segment, long startTime, long endTime);
+    }
+
+    private final Curve buffer;
+    private final long restMillis;
+    private final Listener listener;
+
+    private boolean hasBase, active;
+    private double bs, bx, by, bz;
+    // Last sample seen, raw.
+    private long lastTime;
+    private double ls, lx, ly, lz;
+    // Start of the current still period, raw, while active.
+    private long anchorTime;
+    private double as, ax, ay, az;
+
+    Trimmer() {
+        this(new Curve(), 0, null);
+    }
+
+    /**
+     * @param buffer     where the segment is kept; also the curve returned by {@link #finish()}.
+     * @param restMillis how long the sensor must stay still to end a segment, or 0 to only end it on {@link #finish()}.
+     */
+    Trimmer(Curve buffer, long restMillis, Listener listener) {
+        this.buffer = buffer;
+        this.restMillis = restMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Whether the sensor is currently moving, that is, a segment has started and not ended yet.
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Timestamp of the first sample of the current segment, while {@link #isActive()}.
+     */
+    long getSegmentStart() {
+        return (long) buffer.t[0];
+    }
+
+    /**
+     * Discards everything; the next sample becomes the base.
+     */
+    void reset() {
+        hasBase = active = false;
+        buffer.clear();
+    }
+
+    @Override
+    public void accept(long timestamp, double w, double x, double y, double z) {
+        lastTime = timestamp;
+        ls = w;
+        lx = x;
+        ly = y;
+        lz = z;
+        if (!hasBase) {
+            hasBase = true;
+            bs = w;
+            bx = x;
+            by = y;
+            bz = z;
+            return;
+        }
+
+        if (!active) {
+            if (Curves.atRest(w - bs, x - bx, y - by, z - bz))
+                return;
+            active = true;
+            buffer.clear();
+            anchor(timestamp, w, x, y, z);
+        } else if (!Curves.atRest(w - as, x - ax, y - ay, z - az))
+            anchor(timestamp, w, x, y, z);
+        buffer.add(timestamp, w - bs, x - bx, y - by, z - bz);
+
+        if ((restMillis > 0) && (timestamp - anchorTime >= restMillis)) {
+            long startTime = getSegmentStart();
+            Curve segment = cut();
+            if (listener != null)
+                listener.onSegment(segment, startTime, startTime + (long) segment.t[segment.size - 1]);
+            active = false;
+            buffer.clear();
+            bs = w;
+            bx = x;
+            by = y;
+            bz = z;
+        }
+    }
+
+    /**
+     * Ends the current segment at the last sample seen and returns it, or {@code null} if no sample was seen. If the
+     * sensor never moved, the segment is just the last sample. The returned curve is only valid until the next call
+     * to {@link #accept} or {@link #reset()}.
+     */
+    Curve finish() {
+        if (!hasBase)
+            return null;
+        if (!active) {
+            buffer.clear();
+            buffer.add(lastTime, ls - bs, lx - bx, ly - by, lz - bz);
+        }
+        Curve segment = cut();
+        active = false;
+        return segment;
+    }
+
+    private void anchor(long timestamp, double w, double x, double y, double z) {
+        anchorTime = timestamp;
+        as = w;
+        ax = x;
+        ay = y;
+        az = z;
+    }
+
+    /**
+     * Drops the samples at the end that are still relative to the last sample, and makes times relative to the first.
+     */
+    private Curve cut() {
+        final Curve c = buffer;
+        double es = ls - bs, ex = lx - bx, ey = ly - by, ez = lz - bz;
+        int last = c.size - 1;
+        while ((last > 0) && Curves.atRest(c.s[last] - es, c.x[last] - ex, c.y[last] - ey, c.z[last] - ez))
+            --last;
+        c.size = last + 1;
+        double t0 = c.t[0];
+        for (int i = 0; i <= last; ++i)
+            c.t[i] -= t0;
+        return c;
+    }
+}
@@ -0,0 +1,169 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import org.unbiquitous.uos.core.UOS;
+import org.unbiquitous.uos.core.UOSLogging;
+import org.unbiquitous.uos.core.adaptabitilyEngine.UosEventListener;
+import org.unbiquitous.uos.core.messageEngine.dataType.UpDevice;
+import org.unbiquitous.uos.core.messageEngine.messages.Call;
+import org.unbiquitous.uos.core.messageEngine.messages.Response;
+import org.unbiquitous.uos.network.socket.TCPProperties;
+import org.unbiquitous.uos.network.socket.radar.MulticastRadar;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+
+import static org.unbiquitous.unbihealth.fisiogame.Curves.MATCH_THRESHOLD;
+
+/**
+ * The uOS middleware as used by the controller: starts the local instance, issues service calls to IMU hosts and
+ * notifies game devices. Has no dependency on the user interface, so it can also run headless.
+ * <p>
+ * A single instance can serve several sessions, each notifying its own game device through a pipeline from
+ * {@link #newNotifies}; all of them share the gateway and the service call threads.
+ */
+class UosRuntime {
+    static final int DEFAULT_PORT = 8300;
+    static final String DEFAULT_GAME_ADDRESS = "0.0.0.0:8302";
+
+    private static final int CALL_THREADS = 4;
+    private static final int MAX_CALLS_IN_FLIGHT = 32;
+    private static final long CALL_TIMEOUT_MILLIS = 10000;
+
+    static {
+        UOSLogging.setLevel(Level.ALL);
+    }
+
+    private final UOS uos = new UOS();
+    private volatile boolean started = false;
+    private final ServiceExecutor executor = new ServiceExecutor(
+            (device, call) -> uos.getGateway().callService(device, call),
+            CALL_THREADS, MAX_CALLS_IN_FLIGHT, CALL_TIMEOUT_MILLIS);
+    private final List<NotifyPipeline> pipelines = new CopyOnWriteArrayList<>();
+    private final NotifyPipeline notifies;
+
+    /**
+     * Creates a runtime without a default game device, for sessions that bring their own.
+     */
+    UosRuntime() {
+        notifies = null;
+    }
+
+    /**
+     * @param gameAddress address of the default game device, which receives the notifies of {@link #sendPunch}.
+     */
+    UosRuntime(String gameAddress) {
+        notifies = newNotifies(gameAddress);
+    }
+
+    /**
+     * Creates a pipeline that notifies the game device at {@code gameAddress}. It is shut down along with the runtime.
+     */
+    NotifyPipeline newNotifies(String gameAddress) {
+        final UpDevice gameDevice = new UpDevice("fisiogame").addNetworkInterface(gameAddress, "Ethernet:TCP");
+        NotifyPipeline p = new NotifyPipeline((n) -> uos.getGateway().notify(n, gameDevice),
+                Long.getLong("fisiogame.notifyWindow", NotifyPipeline.DEFAULT_WINDOW_MILLIS));
+        pipelines.add(p);
+        return p;
+    }
+
+    /**
+     * Starts the local uOS instance listening on {@code port}, with the ten following ports as passive ports.
+     */
+    void start(int port) {
+        if (started)
+            throw new IllegalStateException("UOS instance already running.");
+        TCPProperties props = new MulticastRadar.Properties();
+        props.setPort(port);
+        props.setPassivePortRange(port + 1, port + 10);
+        props.put("ubiquitos.multicast.beaconFrequencyInSeconds", 10);
+        uos.start(props);
+        started = true;
+    }
+
+    void stop() {
+        if (!started)
+            return;
+
+        executor.shutdown();
+        for (NotifyPipeline p : pipelines)
+            p.shutdown();
+        try {
+            uos.stop();
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+        started = false;
+    }
+
+    CompletableFuture<Response> callService(UpDevice device, Call call) {
+        if (!started) {
+            CompletableFuture<Response> f = new CompletableFuture<>();
+            f.completeExceptionally(new IllegalStateException("UOS not started yet."));
+            return f;
+        }
+        return executor.call(device, call);
+    }
+
+    /**
+     * Calls a service, passing either the response and its error, or a description of the failure, to the callback.
+     */
+    CompletableFuture<Response> callService(UpDevice device, Call call, BiConsumer<Response, String> callback) {
+        CompletableFuture<Response> f = callService(device, call);
+        f.whenComplete((r, t) -> {
+            if (t == null)
+                callback.accept(r, r.getError());
+            else if (t instanceof IllegalStateException)
+                callback.accept(null, t.getMessage());
+            else {
+                StringWriter sw = new StringWriter();
+                t.printStackTrace(new PrintWriter(sw));
+                callback.accept(null, sw.toString());
+            }
+        });
+        return f;
+    }
+
+    /**
+     * Subscribes {@code listener} to the {@code eventKey} events of a driver of {@code device}.
+     */
+    void register(UosEventListener listener, UpDevice device, String driver, String eventKey) throws Exception {
+        if (!started)
+            throw new IllegalStateException("UOS not started yet.");
+        uos.getGateway().register(listener, device, driver, eventKey);
+    }
+
+    /**
+     * Cancels every subscription of {@code listener}.
+     */
+    void unregister(UosEventListener listener) throws Exception {
+        if (started)
+            uos.getGateway().unregister(listener);
+    }
+
+    /**
+     * Tells the default game a movement matched a reference curve at the given distance. The notify is queued and
+     * sent in the background.
+     */
+    void sendPunch(double distance) {
+        sendPunch(notifies, distance);
+    }
+
+    /**
+     * Same as {@link #sendPunch(double)}, through the pipeline of another game device.
+     */
+    static void sendPunch(NotifyPipeline notifies, double distance) {
+        notifies.event("punch", (float) (1 - distance / MATCH_THRESHOLD));
+    }
+
+    /**
+     * Pipeline of the default game device, or {@code null} if there is none.
+     */
+    NotifyPipeline getNotifies() {
+        return notifies;
+    }
+}
@@ -0,0 +1,73 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DtwCascadeTest {
+    private static final int PAIRS = 200;
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * LB_Kim, LB_Keogh both ways and the bound of the template index never exceed the exact distance, for every
+     * kernel, on single and fused curves.
+     */
+    @Test
+    public void lowerBoundsNeverExceedTheDistance() {
+        Random random = new Random(3);
+        PrimitiveDtw dtw = new PrimitiveDtw();
+        for (QuaternionDistance kernel : QuaternionDistance.values()) {
+            for (int p = 0; p < PAIRS; ++p) {
+                int sensors = 1 + random.nextInt(2);
+                Curve[] a = TestCurves.tared(random, sensors, 1 + random.nextInt(40));
+                Curve[] b = TestCurves.tared(random, sensors, 1 + random.nextInt(40));
+                double exact = dtw.distance(a, b, Integer.MAX_VALUE, kernel);
+                DtwCascade.Bounds ba = DtwCascade.bounds(a), bb = DtwCascade.bounds(b);
+                String pair = kernel + " pair " + p;
+
+                assertTrue(pair, DtwCascade.lbKim(ba, bb, kernel) <= exact + EPSILON);
+                assertTrue(pair, DtwCascade.lbKeogh(ba, bb, kernel, Double.POSITIVE_INFINITY) <= exact + EPSILON);
+                assertTrue(pair, DtwCascade.lbKeogh(bb, ba, kernel, Double.POSITIVE_INFINITY) <= exact + EPSILON);
+
+                TemplateIndex index = new TemplateIndex(Collections.singletonMap("a", Curve.toTimeSeries(a)),
+                        Collections.singletonMap("a", kernel));
+                for (TemplateIndex.Candidate c : index.candidates(bb, Double.POSITIVE_INFINITY))
+                    assertTrue(pair, c.bound <= exact + EPSILON);
+            }
+        }
+    }
+
+    /**
+     * With the threshold just over the exact distance, the cascade and the index must still find it, for curves
+     * whose base is only close to the identity.
+     */
+    @Test
+    public void pruningKeepsEveryMatchOfTaredCurves() {
+        Random random = new Random(17);
+        PrimitiveDtw dtw = new PrimitiveDtw();
+        for (QuaternionDistance kernel : QuaternionDistance.values()) {
+            for (int p = 0; p < PAIRS; ++p) {
+                Curve a = TestCurves.tared(random, 5 + random.nextInt(40));
+                Curve b = TestCurves.tared(random, 5 + random.nextInt(40));
+                double exact = dtw.distance(new Curve[]{a}, new Curve[]{b}, Integer.MAX_VALUE, kernel);
+                double threshold = exact * (1 + EPSILON) + 1e-12;
+
+                DtwCascade cascade = new DtwCascade(threshold, DtwCascade.Engine.PRIMITIVE);
+                assertEquals(kernel + " pair " + p, exact,
+                        cascade.distance(DtwCascade.bounds(a), DtwCascade.bounds(b), kernel), EPSILON);
+                assertEquals(kernel + " pair " + p, 0, cascade.getKimPruned() + cascade.getKeoghPruned());
+
+                TemplateIndex index = new TemplateIndex(Collections.singletonMap("a", a.toTimeSeries()),
+                        Collections.singletonMap("a", kernel));
+                List<TemplateIndex.Candidate> candidates = index.candidates(DtwCascade.bounds(b), threshold);
+                assertFalse(kernel + " pair " + p, candidates.isEmpty());
+            }
+        }
+    }
+}
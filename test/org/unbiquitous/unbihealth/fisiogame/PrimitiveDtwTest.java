@@ -0,0 +1,91 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrimitiveDtwTest {
+    private static final int PAIRS = 100;
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * Textbook DTW over the full cost matrix, taking the largest distance among the sensors at each cell.
+     */
+    private static double reference(Curve[] a, Curve[] b, QuaternionDistance kernel) {
+        int n = a[0].size, m = b[0].size;
+        double[][] cost = new double[n + 1][m + 1];
+        for (double[] row : cost)
+            Arrays.fill(row, Double.POSITIVE_INFINITY);
+        cost[0][0] = 0;
+        for (int i = 1; i <= n; ++i)
+            for (int j = 1; j <= m; ++j)
+                cost[i][j] = cell(a, i - 1, b, j - 1, kernel)
+                        + Math.min(cost[i - 1][j - 1], Math.min(cost[i - 1][j], cost[i][j - 1]));
+        return cost[n][m];
+    }
+
+    private static double cell(Curve[] a, int i, Curve[] b, int j, QuaternionDistance kernel) {
+        double max = 0;
+        for (int k = 0; k < a.length; ++k)
+            max = Math.max(max, kernel.between(a[k].s[i], a[k].x[i], a[k].y[i], a[k].z[i],
+                    b[k].s[j], b[k].x[j], b[k].y[j], b[k].z[j]));
+        return max;
+    }
+
+    @Test
+    public void distanceMatchesTheReference() {
+        Random random = new Random(4);
+        PrimitiveDtw dtw = new PrimitiveDtw();
+        for (QuaternionDistance kernel : QuaternionDistance.values()) {
+            for (int p = 0; p < PAIRS; ++p) {
+                int sensors = 1 + random.nextInt(2);
+                Curve[] a = TestCurves.tared(random, sensors, 1 + random.nextInt(30));
+                Curve[] b = TestCurves.tared(random, sensors, 1 + random.nextInt(30));
+                double expected = reference(a, b, kernel);
+                String pair = kernel + " pair " + p;
+
+                assertEquals(pair, expected, dtw.distance(a, b, Integer.MAX_VALUE, kernel), EPSILON);
+                // A band as wide as the curves is the full matrix, and a narrower one can only cost more.
+                assertEquals(pair, expected, dtw.distance(a, b, Math.max(a[0].size, b[0].size), kernel), EPSILON);
+                assertTrue(pair, dtw.distance(a, b, 2, kernel) >= expected - EPSILON);
+                // Abandoned exactly when the distance reaches the limit.
+                assertEquals(pair, expected, dtw.distance(a, b, Integer.MAX_VALUE, kernel, expected + 1e-6), EPSILON);
+                assertEquals(pair, Double.POSITIVE_INFINITY,
+                        dtw.distance(a, b, Integer.MAX_VALUE, kernel, expected - 1e-6), 0);
+            }
+        }
+    }
+
+    @Test
+    public void pathIsAWarpPathThatCostsTheDistance() {
+        Random random = new Random(5);
+        for (QuaternionDistance kernel : QuaternionDistance.values()) {
+            for (int p = 0; p < PAIRS; ++p) {
+                int sensors = 1 + random.nextInt(2);
+                Curve[] a = TestCurves.tared(random, sensors, 1 + random.nextInt(30));
+                Curve[] b = TestCurves.tared(random, sensors, 1 + random.nextInt(30));
+                int[][] path = PrimitiveDtw.path(a, b, kernel);
+                String pair = kernel + " pair " + p;
+
+                int length = path[0].length;
+                assertEquals(pair, length, path[1].length);
+                assertEquals(pair, 0, path[0][0]);
+                assertEquals(pair, 0, path[1][0]);
+                assertEquals(pair, a[0].size - 1, path[0][length - 1]);
+                assertEquals(pair, b[0].size - 1, path[1][length - 1]);
+                double cost = cell(a, 0, b, 0, kernel);
+                for (int s = 1; s < length; ++s) {
+                    int di = path[0][s] - path[0][s - 1], dj = path[1][s] - path[1][s - 1];
+                    assertTrue(pair + " step " + s,
+                            ((di == 0) || (di == 1)) && ((dj == 0) || (dj == 1)) && (di + dj > 0));
+                    cost += cell(a, path[0][s], b, path[1][s], kernel);
+                }
+                assertEquals(pair, reference(a, b, kernel), cost, EPSILON);
+            }
+        }
+    }
+}
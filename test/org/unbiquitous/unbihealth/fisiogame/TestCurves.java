@@ -0,0 +1,54 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import java.util.Random;
+
+/**
+ * Random curves for the tests.
+ */
+final class TestCurves {
+    private TestCurves() {
+    }
+
+    /**
+     * Random curve of quaternion deltas, as recorded from a base within {@link QuaternionDistance#TARE_TOLERANCE} of
+     * the identity and made relative to it component by component, like {@link Curves#relativeTo} does.
+     */
+    static Curve tared(Random random, int n) {
+        double t = QuaternionDistance.TARE_TOLERANCE;
+        double[] base = normalize(1 - t * random.nextDouble(), t * (2 * random.nextDouble() - 1),
+                t * (2 * random.nextDouble() - 1), t * (2 * random.nextDouble() - 1));
+        double[] q = base;
+        Curve c = new Curve(n);
+        for (int i = 0; i < n; ++i) {
+            c.add(10 * i, q[0] - base[0], q[1] - base[1], q[2] - base[2], q[3] - base[3]);
+            q = rotate(random, q, 0.05);
+        }
+        return c;
+    }
+
+    /**
+     * The same as {@link #tared(Random, int)}, for several sensors sampled at the same times.
+     */
+    static Curve[] tared(Random random, int sensors, int n) {
+        Curve[] curves = new Curve[sensors];
+        for (int k = 0; k < sensors; ++k)
+            curves[k] = tared(random, n);
+        return curves;
+    }
+
+    /**
+     * Applies a random rotation to {@code q}, with each component of its axis times half its angle drawn with a
+     * standard deviation of {@code sigma}.
+     */
+    static double[] rotate(Random random, double[] q, double sigma) {
+        double w = 1, x = sigma * random.nextGaussian(), y = sigma * random.nextGaussian(),
+                z = sigma * random.nextGaussian();
+        return normalize(q[0] * w - q[1] * x - q[2] * y - q[3] * z, q[0] * x + q[1] * w + q[2] * z - q[3] * y,
+                q[0] * y - q[1] * z + q[2] * w + q[3] * x, q[0] * z + q[1] * y - q[2] * x + q[3] * w);
+    }
+
+    static double[] normalize(double w, double x, double y, double z) {
+        double n = Math.sqrt(w * w + x * x + y * y + z * z);
+        return new double[]{w / n, x / n, y / n, z / n};
+    }
+}
@@ -0,0 +1,80 @@
+package org.unbiquitous.unbihealth.fisiogame;
+
+import org.apache.commons.math3.complex.Quaternion;
+import org.junit.Test;
+import org.unbiquitous.unbihealth.imu.Sample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrimmerTest {
+    private static final int RECORDINGS = 500;
+
+    /**
+     * The trimming {@link Curves#processCurve(List)} did before {@link Trimmer}: two passes over the whole recording,
+     * one from each end.
+     */
+    private static Curve baseline(List<Sample> samples) {
+        int first = 0, last = samples.size() - 1;
+        Quaternion qf = samples.get(first).getQuaternion(), ql = samples.get(last).getQuaternion();
+        while ((first < last) && atRest(samples.get(first).getQuaternion(), qf))
+            ++first;
+        while ((last > first) && atRest(samples.get(last).getQuaternion(), ql))
+            --last;
+        Curve c = new Curve();
+        long baseTime = samples.get(first).getTimestamp();
+        for (int k = first; k <= last; ++k) {
+            Quaternion q = samples.get(k).getQuaternion();
+            c.add(samples.get(k).getTimestamp() - baseTime, q.getQ0() - qf.getQ0(), q.getQ1() - qf.getQ1(),
+                    q.getQ2() - qf.getQ2(), q.getQ3() - qf.getQ3());
+        }
+        return c;
+    }
+
+    private static boolean atRest(Quaternion q, Quaternion base) {
+        return Math.max(Math.max(Math.abs(q.getQ0() - base.getQ0()), Math.abs(q.getQ1() - base.getQ1())),
+                Math.max(Math.abs(q.getQ2() - base.getQ2()), Math.abs(q.getQ3() - base.getQ3())))
+                <= Curves.CURVE_THRESHOLD;
+    }
+
+    /**
+     * A recording of rests and movements of random lengths, with sensor noise, sometimes without any movement.
+     */
+    private static List<Sample> recording(Random random) {
+        List<Sample> samples = new ArrayList<>();
+        double[] q = TestCurves.normalize(random.nextGaussian(), random.nextGaussian(), random.nextGaussian(),
+                random.nextGaussian());
+        long t = random.nextInt(100000);
+        int parts = random.nextInt(4);
+        for (int part = 0; part <= 2 * parts; ++part) {
+            boolean moving = (part % 2) == 1;
+            for (int i = 0, n = 1 + random.nextInt(50); i < n; ++i) {
+                q = TestCurves.rotate(random, q, moving ? 0.05 : 0.002);
+                samples.add(new Sample(t += 5 + random.nextInt(10), new Quaternion(q[0], q[1], q[2], q[3])));
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    public void processCurveMatchesTheBaseline() {
+        Random random = new Random(14);
+        Curve out = new Curve();
+        for (int r = 0; r < RECORDINGS; ++r) {
+            List<Sample> samples = recording(random);
+            Curve expected = baseline(samples), actual = Curves.processCurve(samples, out);
+            String recording = "recording " + r;
+            assertEquals(recording, expected.size, actual.size);
+            for (int i = 0; i < expected.size; ++i) {
+                assertEquals(recording, expected.t[i], actual.t[i], 0);
+                assertEquals(recording, expected.s[i], actual.s[i], 0);
+                assertEquals(recording, expected.x[i], actual.x[i], 0);
+                assertEquals(recording, expected.y[i], actual.y[i], 0);
+                assertEquals(recording, expected.z[i], actual.z[i], 0);
+            }
+        }
+    }
+}